@@ -0,0 +1,58 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.command.Command;
+import com.cbruegg.emuserver.command.CommandEncoding;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares {@link CommandEncoding#TEXT} with {@link CommandEncoding#BINARY} for the commands a session sends,
+ * each encoded into the buffer that {@link EmulatorInput} hands to the input socket. Client input is forwarded as it
+ * is and not encoded, so it isn't measured here.
+ * <p>
+ * Run with {@code ./gradlew benchmark -PbenchmarkClass=com.cbruegg.emuserver.platform.ds.CommandEncodingBenchmark}.
+ */
+public class CommandEncodingBenchmark {
+
+    private static final int WARMUP_COMMANDS = 1_000_000;
+    private static final int COMMANDS = 5_000_000;
+    private static final String STATE_FILE = "/tmp/emuserver/00000000-0000-0000-0000-000000000000/rewind.mln";
+
+    public static void main(String[] args) {
+        Command[] commands = {
+                new Command.Pause(),
+                new Command.SaveState(STATE_FILE),
+                new Command.Resume(),
+                new Command.Pause(),
+                new Command.LoadState(STATE_FILE),
+                new Command.Resume(),
+                new Command.SaveGameSave(),
+                new Command.LoadGameSave(),
+        };
+
+        for (CommandEncoding encoding : CommandEncoding.values()) {
+            var encoder = new EmulatorInput.CommandEncoder(encoding);
+            measure(encoder, commands, WARMUP_COMMANDS);
+            var allocatedBefore = allocatedBytes();
+            var start = System.nanoTime();
+            var bytes = measure(encoder, commands, COMMANDS);
+            var nanos = System.nanoTime() - start;
+            var allocated = allocatedBytes() - allocatedBefore;
+            System.out.printf("%-6s %12.0f commands/s   %6.1f bytes allocated/command   %5.1f bytes/command%n",
+                    encoding, COMMANDS * 1e9 / nanos, allocated / (double) COMMANDS, bytes / (double) COMMANDS);
+        }
+    }
+
+    private static long measure(EmulatorInput.CommandEncoder encoder, Command[] commands, int count) {
+        var bytes = 0L;
+        for (int i = 0; i < count; i++) {
+            bytes += encoder.encode(commands[i % commands.length]).length();
+        }
+        return bytes;
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
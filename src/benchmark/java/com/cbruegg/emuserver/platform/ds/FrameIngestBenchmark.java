@@ -0,0 +1,179 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import static com.cbruegg.emuserver.platform.ds.JpegCompressor.*;
+
+/**
+ * Compares the previous frame ingest path of {@link JpegCompressor} (direct {@link ByteBuffer}, {@code int[]}
+ * and {@link BufferedImage#setRGB}) with reading frames straight into the raster the encoder consumes.
+ * <p>
+ * Run with {@code ./gradlew benchmark}.
+ */
+public class FrameIngestBenchmark {
+
+    private static final int WARMUP_FRAMES = 300;
+    private static final int INGEST_FRAMES = 5_000;
+    private static final int ENCODE_FRAMES = 600;
+
+    // stream -> channel scratch buffer -> direct buffer -> int[] -> raster
+    private static final int LEGACY_COPIES_PER_FRAME = 4;
+    // stream -> raster
+    private static final int DIRECT_COPIES_PER_FRAME = 1;
+
+    private interface Ingest {
+        boolean next() throws IOException;
+
+        BufferedImage image();
+    }
+
+    public static void main(String[] args) throws IOException {
+        var frames = new byte[4][FRAME_SIZE_BYTES];
+        var random = new Random(42);
+        for (byte[] frame : frames) {
+            random.nextBytes(frame);
+        }
+
+        System.out.println("Frame size: " + FRAME_SIZE_BYTES + " bytes");
+        report("legacy", LEGACY_COPIES_PER_FRAME,
+                measureIngest(legacy(new FrameLoopInputStream(frames)), INGEST_FRAMES),
+                measureEncode(legacy(new FrameLoopInputStream(frames)), ENCODE_FRAMES));
+        report("direct", DIRECT_COPIES_PER_FRAME,
+                measureIngest(direct(new FrameLoopInputStream(frames)), INGEST_FRAMES),
+                measureEncode(direct(new FrameLoopInputStream(frames)), ENCODE_FRAMES));
+    }
+
+    private static void report(String name, int copiesPerFrame, double ingestNsPerFrame, double encodeNsPerFrame) {
+        System.out.printf("%-7s bytes copied/frame: %8d   ingest: %10.0f ns/frame   ingest+encode: %10.0f ns/frame%n",
+                name, (long) copiesPerFrame * FRAME_SIZE_BYTES, ingestNsPerFrame, encodeNsPerFrame);
+    }
+
+    private static double measureIngest(Ingest ingest, int frames) throws IOException {
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            ingest.next();
+        }
+        var start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            ingest.next();
+        }
+        return (System.nanoTime() - start) / (double) frames;
+    }
+
+    private static double measureEncode(Ingest ingest, int frames) throws IOException {
+        var jpegParams = new JPEGImageWriteParam(null);
+        jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        jpegParams.setCompressionQuality(0.95f);
+        ImageWriter jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
+        try (var jpegOutputBuffer = new ByteArrayOutputStream(FRAME_SIZE_BYTES);
+             var imageOutputStream = ImageIO.createImageOutputStream(jpegOutputBuffer)) {
+            jpegWriter.setOutput(imageOutputStream);
+            var iioImage = new IIOImage(ingest.image(), null, null);
+            var start = 0L;
+            for (int i = -WARMUP_FRAMES / 10; i < frames; i++) {
+                if (i == 0) {
+                    start = System.nanoTime();
+                }
+                ingest.next();
+                jpegWriter.write(null, iioImage, jpegParams);
+                jpegOutputBuffer.reset();
+            }
+            return (System.nanoTime() - start) / (double) frames;
+        } finally {
+            jpegWriter.dispose();
+        }
+    }
+
+    private static Ingest legacy(InputStream from) {
+        ReadableByteChannel fromChannel = Channels.newChannel(from);
+        ByteBuffer imageBuffer = ByteBuffer.allocateDirect(FRAME_SIZE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer imageIntBuffer = imageBuffer.asIntBuffer();
+        int[] imageIntArray = new int[imageIntBuffer.remaining()];
+        var bufferedImage = new BufferedImage(SINGLE_SCREEN_WIDTH, SINGLE_SCREEN_HEIGHT * 2, BufferedImage.TYPE_INT_BGR);
+        return new Ingest() {
+            @Override
+            public boolean next() throws IOException {
+                while (imageBuffer.hasRemaining()) {
+                    if (fromChannel.read(imageBuffer) < 0) {
+                        return false;
+                    }
+                }
+                imageIntBuffer.get(imageIntArray);
+                bufferedImage.setRGB(0, 0, SINGLE_SCREEN_WIDTH, SINGLE_SCREEN_HEIGHT * 2, imageIntArray, 0, SINGLE_SCREEN_WIDTH);
+                imageIntBuffer.clear();
+                imageBuffer.clear();
+                return true;
+            }
+
+            @Override
+            public BufferedImage image() {
+                return bufferedImage;
+            }
+        };
+    }
+
+    private static Ingest direct(InputStream from) {
+        var frame = new byte[FRAME_SIZE_BYTES];
+        var image = createFrameImage(frame, 0, SINGLE_SCREEN_HEIGHT * 2);
+        return new Ingest() {
+            @Override
+            public boolean next() throws IOException {
+                return readFrame(from, frame);
+            }
+
+            @Override
+            public BufferedImage image() {
+                return image;
+            }
+        };
+    }
+
+    /**
+     * Endlessly replays a fixed set of frames, like a melonDS screen socket that never closes.
+     */
+    private static final class FrameLoopInputStream extends InputStream {
+        private final byte[][] frames;
+        private int frame = 0;
+        private int position = 0;
+
+        FrameLoopInputStream(byte[][] frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public int read() {
+            var value = frames[frame][position] & 0xFF;
+            advance(1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            var n = Math.min(len, FRAME_SIZE_BYTES - position);
+            System.arraycopy(frames[frame], position, b, off, n);
+            advance(n);
+            return n;
+        }
+
+        private void advance(int n) {
+            position += n;
+            if (position == FRAME_SIZE_BYTES) {
+                position = 0;
+                frame = (frame + 1) % frames.length;
+            }
+        }
+    }
+}
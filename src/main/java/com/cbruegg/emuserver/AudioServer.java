@@ -0,0 +1,276 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.AudioProtocol;
+import com.cbruegg.emuserver.platform.ds.ImaAdpcmEncoder;
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.parsetools.RecordParser;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays the audio of melonDS to the most recently connected client. melonDS sends chunks of samples, each prefixed
+ * with its size as a little-endian int32, which are forwarded as they are or compressed, depending on the
+ * {@link AudioProtocol} of the client. While there is no client or the client can't keep up, the emulator's audio
+ * socket isn't read from.
+ * <p>
+ * Each chunk is written with a single write. With a latency budget, all chunks that arrive within the budget after
+ * the first one are coalesced into one write, which saves packets at the cost of latency.
+ */
+final class AudioServer {
+
+    /**
+     * @param packetsPerSecond    writes to the client per second
+     * @param averagePayloadBytes average number of bytes per write
+     */
+    record Stats(double packetsPerSecond, double averagePayloadBytes) {
+    }
+
+    /**
+     * Where the audio goes, a connection to the audio socket or a client of the {@link DatagramServer}.
+     */
+    interface Client {
+        void write(Buffer message);
+
+        /**
+         * @return whether the emulator's audio socket should not be read from until the client has caught up
+         */
+        boolean writeQueueFull();
+
+        /**
+         * @return whether chunks may be held back to coalesce them, see {@link AudioServer}
+         */
+        boolean coalesces();
+
+        void close();
+    }
+
+    private static final int HEADER_SIZE = 4;
+    private static final int TYPICAL_CHUNK_SIZE = 0x2000;
+    private static final int MAX_BATCH_SIZE = 0x10000;
+    // Batches grow beyond this as needed
+    private static final int INITIAL_BATCH_SIZE = 0x2000;
+
+    private final Vertx vertx;
+    private final NetSocket emulatorConnection;
+    private final RecordParser parser;
+    private final long latencyBudgetMs;
+    private final SessionMetrics metrics;
+    @Nullable
+    private volatile Client client;
+    // Only set if the client negotiated compressed audio
+    @Nullable
+    private ImaAdpcmEncoder encoder;
+    @Nullable
+    private Buffer header;
+    @Nullable
+    private Buffer batch;
+    private long batchTimer = -1;
+
+    private volatile double packetsPerSecond = 0;
+    private volatile double averagePayloadBytes = 0;
+    private long rateWindowStart = System.nanoTime();
+    private int packetsInRateWindow = 0;
+    private long bytesInRateWindow = 0;
+
+    /**
+     * @param latencyBudgetMs how long chunks may be held back to coalesce them, or 0 to write each one right away
+     */
+    AudioServer(Vertx vertx, NetSocket emulatorConnection, long latencyBudgetMs, SessionMetrics metrics) {
+        this.vertx = vertx;
+        this.emulatorConnection = emulatorConnection;
+        this.latencyBudgetMs = latencyBudgetMs;
+        this.metrics = metrics;
+        this.parser = RecordParser.newFixed(HEADER_SIZE, this::onRecord);
+        emulatorConnection.handler(parser);
+        emulatorConnection.exceptionHandler(Throwable::printStackTrace);
+        emulatorConnection.pause();
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    boolean hasClient() {
+        return client != null;
+    }
+
+    void onClient(ClientConnection connection) {
+        AudioProtocol.negotiate(vertx, connection, negotiated -> {
+            if (negotiated.failed()) {
+                negotiated.cause().printStackTrace();
+                connection.close();
+                return;
+            }
+
+            var connectionClient = new Client() {
+                @Override
+                public void write(Buffer message) {
+                    connection.write(message);
+                }
+
+                @Override
+                public boolean writeQueueFull() {
+                    return connection.writeQueueFull();
+                }
+
+                @Override
+                public boolean coalesces() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    connection.close();
+                }
+            };
+            connection.handler(ignored -> {
+            });
+            connection.drainHandler(v -> emulatorConnection.resume());
+            connection.closeHandler(v -> removeClient(connectionClient));
+            onClient(connectionClient, negotiated.result());
+        });
+    }
+
+    /**
+     * Sends the audio to {@code newClient} from now on, instead of to the previous client, which is closed.
+     * Must be called on the context of the session.
+     */
+    void onClient(Client newClient, AudioProtocol protocol) {
+        var previousClient = client;
+        if (previousClient != null) {
+            previousClient.close();
+        }
+        // Coalesced chunks were meant for the previous client and its protocol
+        discardBatch();
+        client = newClient;
+        encoder = protocol == AudioProtocol.IMA_ADPCM ? new ImaAdpcmEncoder(TYPICAL_CHUNK_SIZE) : null;
+        emulatorConnection.resume();
+    }
+
+    /**
+     * Stops sending audio to {@code removedClient} if it is the current client. Must be called on the context of the
+     * session.
+     */
+    void removeClient(Client removedClient) {
+        if (client == removedClient) {
+            client = null;
+            discardBatch();
+            emulatorConnection.pause();
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(packetsPerSecond, averagePayloadBytes);
+    }
+
+    private void onRecord(Buffer record) {
+        if (header == null) {
+            var size = record.getIntLE(0);
+            if (size == 0) {
+                if (encoder == null) {
+                    send(record, null);
+                }
+                return;
+            }
+            header = record;
+            parser.fixedSizeMode(size);
+        } else {
+            send(header, record);
+            header = null;
+            parser.fixedSizeMode(HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Sends one chunk, encoded if the client negotiated compressed audio. The message is built in a buffer of its own
+     * or appended to the batch, never in the buffers handed out by the parser.
+     *
+     * @param pcm null for a chunk without samples
+     */
+    private void send(Buffer header, @Nullable Buffer pcm) {
+        var currentClient = client;
+        if (currentClient == null) {
+            return;
+        }
+        var coalesce = latencyBudgetMs > 0 && currentClient.coalesces();
+        Buffer message;
+        if (coalesce) {
+            message = startBatch();
+        } else if (encoder != null) {
+            message = Buffer.buffer(ImaAdpcmEncoder.getMessageSize(pcm.length()));
+        } else {
+            message = Buffer.buffer(HEADER_SIZE + (pcm != null ? pcm.length() : 0));
+        }
+        if (encoder != null) {
+            encoder.encode(pcm, message);
+        } else {
+            message.appendBuffer(header);
+            if (pcm != null) {
+                message.appendBuffer(pcm);
+            }
+        }
+        if (!coalesce) {
+            write(message);
+            return;
+        }
+
+        if (batch.length() >= MAX_BATCH_SIZE) {
+            vertx.cancelTimer(batchTimer);
+            batchTimer = -1;
+            flushBatch();
+        }
+    }
+
+    /**
+     * @return the batch that chunks are appended to, a new one if none is pending
+     */
+    private Buffer startBatch() {
+        if (batch == null) {
+            batch = Buffer.buffer(INITIAL_BATCH_SIZE);
+            batchTimer = vertx.setTimer(latencyBudgetMs, timerId -> {
+                batchTimer = -1;
+                flushBatch();
+            });
+        }
+        return batch;
+    }
+
+    private void flushBatch() {
+        var message = batch;
+        batch = null;
+        if (message != null && client != null) {
+            write(message);
+        }
+    }
+
+    private void discardBatch() {
+        if (batchTimer >= 0) {
+            vertx.cancelTimer(batchTimer);
+            batchTimer = -1;
+        }
+        batch = null;
+    }
+
+    private void write(Buffer message) {
+        client.write(message);
+        metrics.onBytesSent(SessionMetrics.Socket.AUDIO, message.length());
+        if (client.writeQueueFull()) {
+            emulatorConnection.pause();
+        }
+
+        var now = System.nanoTime();
+        packetsInRateWindow++;
+        bytesInRateWindow += message.length();
+        if (now - rateWindowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            packetsPerSecond = packetsInRateWindow * (double) TimeUnit.SECONDS.toNanos(1) / (now - rateWindowStart);
+            averagePayloadBytes = bytesInRateWindow / (double) packetsInRateWindow;
+            packetsInRateWindow = 0;
+            bytesInRateWindow = 0;
+            rateWindowStart = now;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.cbruegg.emuserver;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A ROM that is uploaded in chunks of a fixed size, which may arrive in any order, concurrently and more than once.
+ * Each chunk is written to its place in a preallocated file with a positional write. The MD5 of the whole ROM is
+ * computed along the way, over the chunks that arrived without a gap, so completing the upload has little left to hash.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class ChunkedRomUpload implements AutoCloseable {
+
+    /**
+     * @param missingChunks the indices of the chunks that haven't been received yet
+     */
+    record Status(UUID id, String md5, long size, int chunkSize, int chunks, List<Integer> missingChunks) {
+    }
+
+    private final UUID id;
+    private final String md5;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Path file;
+    private final FileChannel channel;
+    // Both guarded by received
+    private final BitSet received;
+    private final BitSet writing;
+    // Guarded by itself, along with hashedChunks and completedMd5
+    private final MessageDigest digest;
+    private int hashedChunks = 0;
+    // Set once the upload has been completed, since the digest is reset then
+    @Nullable
+    private byte[] completedMd5;
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    ChunkedRomUpload(UUID id, String md5, long size, int chunkSize, Path file) throws IOException {
+        this.id = id;
+        this.md5 = md5;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.file = file;
+        this.received = new BitSet(chunkCount);
+        this.writing = new BitSet(chunkCount);
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Allocates the file up front, so chunks can be written anywhere
+        channel.write(ByteBuffer.allocate(1), size - 1);
+    }
+
+    UUID getId() {
+        return id;
+    }
+
+    String getMd5() {
+        return md5;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    /**
+     * Writes a chunk. Chunks that have been received already are overwritten with the same content, or rejected
+     * if their content differs.
+     *
+     * @param expectedMd5 the MD5 of the chunk as sent by the client, or null if it sent none
+     * @throws IllegalArgumentException if the chunk doesn't fit or doesn't have the expected MD5
+     */
+    void writeChunk(int index, byte[] chunk, @Nullable byte[] expectedMd5) throws IOException {
+        lastActivityNanos = System.nanoTime();
+        if (index < 0 || index >= chunkCount) {
+            throw new IllegalArgumentException("Chunk " + index + " does not exist, there are " + chunkCount + "!");
+        }
+        var offset = (long) index * chunkSize;
+        var expectedLength = (int) Math.min(chunkSize, size - offset);
+        if (chunk.length != expectedLength) {
+            throw new IllegalArgumentException("Chunk " + index + " must have " + expectedLength + " bytes, not " + chunk.length + "!");
+        }
+        if (expectedMd5 != null && !Arrays.equals(expectedMd5, md5Of(chunk))) {
+            throw new IllegalArgumentException("Chunk " + index + " does not have the expected MD5!");
+        }
+        synchronized (received) {
+            if (received.get(index)) {
+                // Retried after the response got lost. Content that has been hashed already must not change.
+                if (!Arrays.equals(chunk, readChunk(index))) {
+                    throw new IllegalArgumentException("Chunk " + index + " has been received with different content before!");
+                }
+                return;
+            }
+            if (writing.get(index)) {
+                throw new IllegalArgumentException("Chunk " + index + " is being written already!");
+            }
+            writing.set(index);
+        }
+
+        try {
+            var buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            synchronized (received) {
+                received.set(index);
+            }
+        } finally {
+            synchronized (received) {
+                writing.clear(index);
+            }
+        }
+        hashReceivedChunks(index, chunk);
+    }
+
+    /**
+     * Advances the MD5 over all chunks that have been received without a gap.
+     *
+     * @param chunk the content of chunk {@code index}, which saves reading it back
+     */
+    private void hashReceivedChunks(int index, @Nullable byte[] chunk) throws IOException {
+        synchronized (digest) {
+            while (hashedChunks < chunkCount && isReceived(hashedChunks)) {
+                digest.update(hashedChunks == index && chunk != null ? chunk : readChunk(hashedChunks));
+                hashedChunks++;
+            }
+        }
+    }
+
+    private boolean isReceived(int index) {
+        synchronized (received) {
+            return received.get(index);
+        }
+    }
+
+    private byte[] readChunk(int index) throws IOException {
+        var offset = (long) index * chunkSize;
+        var buffer = ByteBuffer.allocate((int) Math.min(chunkSize, size - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Upload file is shorter than expected!");
+            }
+        }
+        return buffer.array();
+    }
+
+    Status getStatus() {
+        var missing = new ArrayList<Integer>();
+        synchronized (received) {
+            for (int i = received.nextClearBit(0); i < chunkCount; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+        }
+        return new Status(id, md5, size, chunkSize, chunkCount, missing);
+    }
+
+    /**
+     * Flushes the file and finishes the MD5. Completing the upload again, e.g. when a client retries, gives the same
+     * MD5 without touching the file.
+     *
+     * @return the MD5 of the whole ROM
+     * @throws IllegalStateException if chunks are missing
+     */
+    byte[] complete() throws IOException {
+        lastActivityNanos = System.nanoTime();
+        synchronized (digest) {
+            if (completedMd5 == null) {
+                synchronized (received) {
+                    if (received.cardinality() != chunkCount) {
+                        throw new IllegalStateException((chunkCount - received.cardinality()) + " chunks are missing!");
+                    }
+                }
+                hashReceivedChunks(-1, null);
+                channel.force(false);
+                completedMd5 = digest.digest();
+            }
+            return completedMd5.clone();
+        }
+    }
+
+    boolean isCompleted() {
+        synchronized (digest) {
+            return completedMd5 != null;
+        }
+    }
+
+    private static byte[] md5Of(byte[] chunk) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(chunk);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Closes the file, which is kept.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+}
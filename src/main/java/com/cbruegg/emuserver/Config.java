@@ -0,0 +1,188 @@
+package com.cbruegg.emuserver;
+
+/**
+ * Tunables of the server, each of which can be overridden with a system property, e.g.
+ * {@code -Demuserver.video.keyframeInterval=60}.
+ */
+final class Config {
+
+    /**
+     * Maximum number of emulator frames between two full frames of
+     * {@link com.cbruegg.emuserver.platform.ds.VideoProtocol#DIRTY_TILES}.
+     */
+    static final int VIDEO_KEYFRAME_INTERVAL = Integer.getInteger("emuserver.video.keyframeInterval", 120);
+
+    /**
+     * Number of threads that encode video for all sessions together.
+     */
+    static final int VIDEO_ENCODER_THREADS = Integer.getInteger("emuserver.video.encoderThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of encoding tasks that may wait for a video encoder thread before sessions encode on their own thread.
+     */
+    static final int VIDEO_ENCODER_QUEUE_SIZE = Integer.getInteger("emuserver.video.encoderQueueSize", 4 * VIDEO_ENCODER_THREADS);
+
+    /**
+     * Number of encoded frames kept per video protocol for viewers that fall behind.
+     */
+    static final int VIDEO_RING_BUFFER_FRAMES = Integer.getInteger("emuserver.video.ringBufferFrames", 8);
+
+    /**
+     * Best JPEG quality a video viewer gets, used as long as its connection keeps up.
+     */
+    static final float VIDEO_MAX_QUALITY = Float.parseFloat(System.getProperty("emuserver.video.maxQuality", "0.95"));
+
+    /**
+     * Lowest JPEG quality a video viewer on a weak connection is lowered to before frames are skipped.
+     */
+    static final float VIDEO_MIN_QUALITY = Float.parseFloat(System.getProperty("emuserver.video.minQuality", "0.5"));
+
+    /**
+     * Number of quality levels between {@link #VIDEO_MAX_QUALITY} and {@link #VIDEO_MIN_QUALITY}, inclusive.
+     */
+    static final int VIDEO_QUALITY_STEPS = Integer.getInteger("emuserver.video.qualitySteps", 4);
+
+    /**
+     * On the weakest connections only every n-th emulator frame is sent.
+     */
+    static final int VIDEO_MAX_FRAME_INTERVAL = Integer.getInteger("emuserver.video.maxFrameInterval", 4);
+
+    /**
+     * Round-trip time above which the stream of a viewer that acknowledges frames is made lighter.
+     */
+    static final long VIDEO_TARGET_RTT_MS = Long.getLong("emuserver.video.targetRttMs", 150);
+
+    /**
+     * How long audio chunks may be held back to coalesce them into fewer packets, e.g. 5, 10 or 20.
+     * With 0, each chunk is sent right away.
+     */
+    static final long AUDIO_LATENCY_BUDGET_MS = Long.getLong("emuserver.audio.latencyBudgetMs", 0);
+
+    /**
+     * How often a save state of each session is captured for rewinding, or 0 to disable rewinding. Each capture
+     * makes melonDS write a save state to disk, which is read back, so rewinding is off by default.
+     */
+    static final long REWIND_INTERVAL_MS = Long.getLong("emuserver.rewind.intervalMs", 0);
+
+    /**
+     * Memory that the rewind states of one session may take, including the newest state, which is kept uncompressed.
+     */
+    static final long REWIND_MAX_BYTES = Long.getLong("emuserver.rewind.maxBytes", 16 * 1024 * 1024);
+
+    /**
+     * How long a save game must stay unmodified before it is sent to the client, so a save is sent once it's complete.
+     */
+    static final long SAVE_GAME_DEBOUNCE_MS = Long.getLong("emuserver.saveGame.debounceMs", 500);
+
+    /**
+     * Number of threads that read changed save games for all sessions together.
+     */
+    static final int SAVE_GAME_READER_THREADS = Integer.getInteger("emuserver.saveGame.readerThreads", 2);
+
+    /**
+     * Size of the chunks of resumable ROM uploads, except for the last one.
+     */
+    static final int ROM_UPLOAD_CHUNK_SIZE = Integer.getInteger("emuserver.romUpload.chunkSize", 4 * 1024 * 1024);
+
+    /**
+     * How long a resumable ROM upload is kept without receiving anything before it is dropped.
+     */
+    static final long ROM_UPLOAD_EXPIRY_MS = Long.getLong("emuserver.romUpload.expiryMs", 60 * 60 * 1000);
+
+    /**
+     * Number of sessions that are started ahead of time for popular ROMs, or 0 to start every session on request.
+     */
+    static final int SESSION_POOL_SIZE = Integer.getInteger("emuserver.sessionPool.size", 2);
+
+    /**
+     * Time after which the popularity of a ROM halves if no session of it is requested. The pool adapts faster
+     * to changing demand with a shorter half-life.
+     */
+    static final long SESSION_POOL_HALF_LIFE_MS = Long.getLong("emuserver.sessionPool.halfLifeMs", 10 * 60 * 1000);
+
+    /**
+     * Number of sessions that may be started at the same time. Sessions that are requested beyond that are queued.
+     */
+    static final int SESSION_START_CONCURRENCY = Integer.getInteger("emuserver.sessionStart.concurrency", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Number of session starts that may be queued before further ones are rejected.
+     */
+    static final int SESSION_START_QUEUE_SIZE = Integer.getInteger("emuserver.sessionStart.queueSize", 32);
+
+    /**
+     * Whether melonDS processes are pinned to the core they have been placed on, and the server to
+     * {@link #CPU_SERVER_CORES}. Needs {@code taskset}, so Linux.
+     */
+    static final boolean CPU_PINNING = Boolean.getBoolean("emuserver.cpu.pinning");
+
+    /**
+     * Number of cores, counted from the first one, that are kept for the server, e.g. for encoding video.
+     * melonDS processes are placed on the other cores, or on all of them if none are left.
+     */
+    static final int CPU_SERVER_CORES = Integer.getInteger("emuserver.cpu.serverCores", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+
+    /**
+     * Number of sessions that may be placed on one core. Sessions that are requested beyond that are rejected.
+     */
+    static final int CPU_SESSIONS_PER_CORE = Integer.getInteger("emuserver.cpu.sessionsPerCore", 2);
+
+    /**
+     * How long a session may go without connected video, audio or input clients, input and API calls before it
+     * hibernates, or 0 to keep sessions running until they are deleted.
+     */
+    static final long SESSION_IDLE_TIMEOUT_MS = Long.getLong("emuserver.session.idleTimeoutMs", 15 * 60 * 1000);
+
+    /**
+     * Bytes that a WebSocket carrying all sockets of a session may have in flight. Messages of channels with a higher
+     * priority can only overtake what hasn't been handed to the WebSocket yet, so a smaller window favors input and
+     * audio at the cost of video throughput.
+     */
+    static final int TRANSPORT_MULTIPLEXED_WINDOW_BYTES = Integer.getInteger("emuserver.transport.multiplexedWindowBytes", 64 * 1024);
+
+    /**
+     * Whether sessions also take input and send audio over UDP, see {@link DatagramServer}.
+     */
+    static final boolean TRANSPORT_DATAGRAM = Boolean.parseBoolean(System.getProperty("emuserver.transport.datagram", "true"));
+
+    /**
+     * Number of recent log lines of melonDS that are kept per session.
+     */
+    static final int LOG_SESSION_LINES = Integer.getInteger("emuserver.log.sessionLines", 1000);
+
+    /**
+     * Number of log lines of all sessions together that may wait to be written. Further lines are dropped, so logging
+     * never slows melonDS down.
+     */
+    static final int LOG_QUEUE_SIZE = Integer.getInteger("emuserver.log.queueSize", 8192);
+
+    /**
+     * Port of the HTTP API.
+     */
+    static final int HTTP_PORT = Integer.getInteger("emuserver.http.port", 1114);
+
+    /**
+     * Directory that ROMs are stored in. Instances that run on the same machine need their own.
+     */
+    static final String ROM_DIR = System.getProperty("emuserver.romDir", "roms");
+
+    /**
+     * Base URLs of the HTTP APIs of all instances of the cluster, separated by commas, e.g.
+     * {@code http://10.0.0.1:1114,http://10.0.0.2:1114}. Empty to run on its own.
+     */
+    static final String CLUSTER_MEMBERS = System.getProperty("emuserver.cluster.members", "");
+
+    /**
+     * Base URL of the HTTP API of this instance, as it is listed in {@link #CLUSTER_MEMBERS}.
+     */
+    static final String CLUSTER_SELF = System.getProperty("emuserver.cluster.self", "http://localhost:" + HTTP_PORT);
+
+    /**
+     * Interval in which the other instances of the cluster are checked. Keys of an instance move to the others once
+     * a check fails.
+     */
+    static final long CLUSTER_HEALTH_INTERVAL_MS = Long.getLong("emuserver.cluster.healthIntervalMs", 2000);
+
+    private Config() {
+    }
+}
@@ -0,0 +1,120 @@
+package com.cbruegg.emuserver;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Places each melonDS process on the least loaded of the emulator cores, and caps the number of sessions per core.
+ * With pinning, melonDS is launched through {@code taskset}, so it stays on its core, and the threads of the server
+ * itself, which encode video, are kept on cores of their own, so they don't compete with the emulators.
+ * Pinning needs Linux.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class CpuPlacement {
+
+    /**
+     * A core that a session has been placed on, until it is closed.
+     */
+    final class Core implements AutoCloseable {
+        private final int index;
+        private boolean closed = false;
+
+        private Core(int index) {
+            this.index = index;
+        }
+
+        int getCpu() {
+            return emulatorCpus[index];
+        }
+
+        @Override
+        public void close() {
+            synchronized (CpuPlacement.this) {
+                if (!closed) {
+                    closed = true;
+                    load[index]--;
+                }
+            }
+        }
+    }
+
+    private final int[] emulatorCpus;
+    private final int sessionsPerCore;
+    private final boolean pin;
+    // Guarded by this
+    private final int[] load;
+
+    /**
+     * @param emulatorCpus the cores melonDS processes are placed on
+     * @param pin          whether melonDS is pinned to the core it has been placed on
+     */
+    CpuPlacement(int[] emulatorCpus, int sessionsPerCore, boolean pin) {
+        this.emulatorCpus = emulatorCpus;
+        this.sessionsPerCore = sessionsPerCore;
+        this.pin = pin;
+        this.load = new int[emulatorCpus.length];
+    }
+
+    /**
+     * @return the least loaded core, or null if all of them have reached the cap
+     */
+    @Nullable
+    synchronized Core acquire() {
+        var leastLoaded = -1;
+        for (int i = 0; i < load.length; i++) {
+            if (load[i] < sessionsPerCore && (leastLoaded < 0 || load[i] < load[leastLoaded])) {
+                leastLoaded = i;
+            }
+        }
+        if (leastLoaded < 0) {
+            return null;
+        }
+        load[leastLoaded]++;
+        return new Core(leastLoaded);
+    }
+
+    /**
+     * @return how many more sessions can be placed
+     */
+    synchronized int getFreeSlots() {
+        var free = 0;
+        for (int coreLoad : load) {
+            free += sessionsPerCore - coreLoad;
+        }
+        return free;
+    }
+
+    /**
+     * @return {@code command}, launched so that it runs on {@code core} if pinning
+     */
+    List<String> command(Core core, List<String> command) {
+        if (!pin) {
+            return command;
+        }
+        var pinned = new ArrayList<String>();
+        pinned.add("taskset");
+        pinned.add("--cpu-list");
+        pinned.add(String.valueOf(core.getCpu()));
+        pinned.addAll(command);
+        return pinned;
+    }
+
+    /**
+     * Pins all threads of this process to {@code cpus}. Threads that are started later inherit it.
+     */
+    static void pinCurrentProcess(int[] cpus) throws IOException, InterruptedException {
+        var cpuList = IntStream.of(cpus).mapToObj(String::valueOf).collect(Collectors.joining(","));
+        var taskset = new ProcessBuilder("taskset", "--all-tasks", "--cpu-list", "--pid", cpuList, String.valueOf(ProcessHandle.current().pid()))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (taskset.waitFor() != 0) {
+            throw new IOException("taskset exited with " + taskset.exitValue());
+        }
+    }
+}
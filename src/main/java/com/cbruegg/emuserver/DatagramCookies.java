@@ -0,0 +1,59 @@
+package com.cbruegg.emuserver;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.SocketAddress;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Cookies that prove that a sender of UDP packets receives packets at its source address, so the
+ * {@link DatagramServer} neither sends audio to nor takes input from forged addresses. The cookie of an address is an
+ * HMAC of the session's UUID and the address under a random key of the session. The key lives as long as the session,
+ * so cookies stay valid across hibernation.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class DatagramCookies {
+
+    static final int SIZE = 16;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_SIZE = 32;
+
+    private final SecretKeySpec key;
+    private final byte[] sessionId;
+
+    DatagramCookies(UUID sessionId) {
+        var keyBytes = new byte[KEY_SIZE];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        this.sessionId = sessionId.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    byte[] cookieOf(SocketAddress address) {
+        Mac mac;
+        try {
+            mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+        mac.update(sessionId);
+        mac.update((address.host() + ":" + address.port()).getBytes(StandardCharsets.US_ASCII));
+        return Arrays.copyOf(mac.doFinal(), SIZE);
+    }
+
+    /**
+     * @return whether {@code packet} carries the cookie of {@code sender} at {@code offset}
+     */
+    boolean isValid(SocketAddress sender, Buffer packet, int offset) {
+        return packet.length() >= offset + SIZE && MessageDigest.isEqual(cookieOf(sender), packet.getBytes(offset, offset + SIZE));
+    }
+}
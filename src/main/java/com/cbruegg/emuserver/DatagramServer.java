@@ -0,0 +1,357 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.platform.ds.AudioProtocol;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.net.SocketAddress;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries input and audio over UDP, beside the input and audio sockets. On TCP, a lost packet holds back everything
+ * after it until it has been retransmitted, which UDP doesn't.
+ * <p>
+ * Each packet starts with its kind as a byte, a sequence number that the sender increments per packet and the time
+ * it was sent in milliseconds on the sender's clock, both as big-endian uint32. Packets from clients continue with
+ * the {@link DatagramCookies cookie} of their address. Packets without a valid one, such as the first ones of a
+ * client, which carry zeros instead, are answered with a {@link #COOKIE} packet. The answer is never larger than the
+ * packet, so forged addresses can't be used to amplify traffic. Only packets with a valid cookie register a client,
+ * forward input or subscribe to audio. From clients:
+ * <ul>
+ *     <li>{@link #INPUT}: the sequence number of the newest input as uint32 and the number of inputs as a byte,
+ *     followed by that many inputs, newest first, each as its size as uint16 and the message as it would be sent to
+ *     the input socket without its size. Clients repeat their recent inputs in every packet, so an input whose packet
+ *     got lost arrives with a later one. Each input is forwarded once and in order. Inputs that arrive after a newer
+ *     one has been forwarded are dropped.</li>
+ *     <li>{@link #AUDIO}: requests the audio in the {@link AudioProtocol} whose version follows as a byte.</li>
+ * </ul>
+ * Clients that sent nothing for {@link #CLIENT_TIMEOUT_MS} are dropped, so they need to send packets, e.g.
+ * {@link #AUDIO} again, while there is no input.
+ * <p>
+ * To clients, a {@link #COOKIE} packet carries the cookie of their address, and each {@link #AUDIO} packet carries
+ * one chunk of audio as the audio socket would. A chunk that can't be sent because the previous one is still being
+ * sent is dropped rather than sent late, and clients drop chunks that are older than one they received already.
+ * <p>
+ * A client is identified by its address. Per client, loss is counted from gaps in the sequence numbers and jitter is
+ * estimated from the send times as in RFC 3550. Everything happens on the context of the session.
+ */
+final class DatagramServer {
+
+    /**
+     * @param packetsLost        packets that never arrived, from gaps in the sequence numbers
+     * @param packetsLate        packets that arrived after a newer one, or twice
+     * @param jitterMillis       smoothed variation of the time packets take
+     * @param inputsRecovered    inputs whose own packet got lost, but which arrived with a later one
+     * @param inputsLost         inputs that didn't arrive with any packet
+     * @param audioChunksDropped audio chunks that were not sent because the previous one was still being sent
+     */
+    record ClientStats(String address,
+                       long packetsReceived,
+                       long packetsLost,
+                       long packetsLate,
+                       double jitterMillis,
+                       long inputsRecovered,
+                       long inputsLost,
+                       long audioChunksSent,
+                       long audioChunksDropped) {
+    }
+
+    static final int INPUT = 0;
+    static final int AUDIO = 1;
+    static final int COOKIE = 2;
+    static final long CLIENT_TIMEOUT_MS = 5000;
+
+    private static final int HEADER_SIZE = 9;
+    // Of packets from clients, which carry their cookie after the header
+    private static final int CLIENT_HEADER_SIZE = HEADER_SIZE + DatagramCookies.SIZE;
+    // Bounds the state kept for packets from unknown senders
+    private static final int MAX_CLIENTS = 16;
+    // Weight of the latest difference in the jitter, as in RFC 3550
+    private static final double JITTER_SMOOTHING = 1 / 16.0;
+
+    private final Vertx vertx;
+    private final DatagramSocket socket;
+    private final DatagramCookies cookies;
+    private final InputServer inputServer;
+    private final AudioServer audioServer;
+    private final Map<SocketAddress, Client> clients = new ConcurrentHashMap<>();
+    private final long timeoutTimer;
+
+    /**
+     * Must be called on the context of the session.
+     *
+     * @param socket listening already
+     */
+    DatagramServer(Vertx vertx, DatagramSocket socket, DatagramCookies cookies, InputServer inputServer, AudioServer audioServer) {
+        this.vertx = vertx;
+        this.socket = socket;
+        this.cookies = cookies;
+        this.inputServer = inputServer;
+        this.audioServer = audioServer;
+        socket.handler(this::onPacket);
+        socket.exceptionHandler(Throwable::printStackTrace);
+        timeoutTimer = vertx.setPeriodic(CLIENT_TIMEOUT_MS / 2, timerId -> dropTimedOutClients());
+    }
+
+    private void onPacket(DatagramPacket packet) {
+        var data = packet.data();
+        if (data.length() < CLIENT_HEADER_SIZE) {
+            return;
+        }
+        var client = clients.get(packet.sender());
+        if (client == null ? !hasValidCookie(socket, cookies, packet) : !MessageDigest.isEqual(client.cookie, data.getBytes(HEADER_SIZE, CLIENT_HEADER_SIZE))) {
+            return;
+        }
+        if (client == null) {
+            if (clients.size() >= MAX_CLIENTS) {
+                return;
+            }
+            client = new Client(packet.sender(), cookies.cookieOf(packet.sender()));
+            clients.put(packet.sender(), client);
+            inputServer.onClientConnected();
+        }
+
+        var kind = data.getUnsignedByte(0);
+        var inOrder = client.onPacketReceived(data.getUnsignedInt(1), data.getUnsignedInt(5));
+        if (kind == INPUT) {
+            client.onInput(data);
+        } else if (kind == AUDIO && data.length() > CLIENT_HEADER_SIZE && inOrder) {
+            var protocol = AudioProtocol.fromVersion(data.getUnsignedByte(CLIENT_HEADER_SIZE));
+            // Subscribed again if another client took over the audio in the meantime
+            if (client.audio == null || client.audio.protocol != protocol || client.audio.closed) {
+                client.audio = new AudioClient(client.address, protocol);
+                audioServer.onClient(client.audio, protocol);
+            }
+        }
+    }
+
+    /**
+     * Answers packets without a valid cookie with the cookie of their sender, provided they are at least as large as
+     * the answer. Also used while the session hibernates, so clients can wake it up.
+     *
+     * @return whether {@code packet} carries the cookie of its sender
+     */
+    static boolean hasValidCookie(DatagramSocket socket, DatagramCookies cookies, DatagramPacket packet) {
+        var data = packet.data();
+        if (data.length() < CLIENT_HEADER_SIZE) {
+            return false;
+        }
+        var sender = packet.sender();
+        if (cookies.isValid(sender, data, HEADER_SIZE)) {
+            return true;
+        }
+        var answer = Buffer.buffer(CLIENT_HEADER_SIZE)
+                .appendByte((byte) COOKIE)
+                .appendUnsignedInt(0)
+                .appendUnsignedInt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) & 0xFFFFFFFFL)
+                .appendBytes(cookies.cookieOf(sender));
+        socket.send(answer, sender.port(), sender.host(), sent -> {
+        });
+        return false;
+    }
+
+    private void dropTimedOutClients() {
+        var now = System.nanoTime();
+        for (Client client : new ArrayList<>(clients.values())) {
+            if (now - client.lastPacketNanos > TimeUnit.MILLISECONDS.toNanos(CLIENT_TIMEOUT_MS)) {
+                clients.remove(client.address);
+                inputServer.onClientDisconnected();
+                if (client.audio != null) {
+                    audioServer.removeClient(client.audio);
+                }
+            }
+        }
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    List<ClientStats> getClientStats() {
+        var stats = new ArrayList<ClientStats>();
+        for (Client client : clients.values()) {
+            stats.add(client.getStats());
+        }
+        return stats;
+    }
+
+    void close() {
+        vertx.cancelTimer(timeoutTimer);
+        for (Client client : clients.values()) {
+            inputServer.onClientDisconnected();
+            if (client.audio != null) {
+                audioServer.removeClient(client.audio);
+            }
+        }
+        clients.clear();
+        socket.close();
+    }
+
+    private final class Client {
+        final SocketAddress address;
+        final byte[] cookie;
+        volatile AudioClient audio;
+        long lastPacketNanos = System.nanoTime();
+        private long lastForwardedInput = -1;
+        private int previousTransitMillis;
+        // Read by getStats from any thread
+        private volatile long firstSequence = -1;
+        private volatile long highestSequence = -1;
+        private volatile long packetsReceived = 0;
+        private volatile long packetsLate = 0;
+        private volatile double jitterMillis = 0;
+        private volatile long inputsRecovered = 0;
+        private volatile long inputsLost = 0;
+
+        Client(SocketAddress address, byte[] cookie) {
+            this.address = address;
+            this.cookie = cookie;
+        }
+
+        /**
+         * @return whether the packet is newer than all before it
+         */
+        boolean onPacketReceived(long sequence, long sentMillis) {
+            var now = System.nanoTime();
+            lastPacketNanos = now;
+            packetsReceived++;
+            // The clocks differ, but only the change in transit time matters. The send time wraps around as uint32.
+            var transitMillis = (int) (TimeUnit.NANOSECONDS.toMillis(now) - sentMillis);
+            if (firstSequence < 0) {
+                firstSequence = sequence;
+            } else {
+                var difference = Math.abs(transitMillis - previousTransitMillis);
+                jitterMillis += JITTER_SMOOTHING * (difference - jitterMillis);
+            }
+            previousTransitMillis = transitMillis;
+            if (sequence <= highestSequence) {
+                packetsLate++;
+                return false;
+            }
+            highestSequence = sequence;
+            return true;
+        }
+
+        void onInput(Buffer data) {
+            if (data.length() < CLIENT_HEADER_SIZE + 5) {
+                return;
+            }
+            var newestInput = data.getUnsignedInt(CLIENT_HEADER_SIZE);
+            var count = data.getUnsignedByte(CLIENT_HEADER_SIZE + 4);
+            if (newestInput <= lastForwardedInput) {
+                return;
+            }
+
+            // Collected newest first, forwarded oldest first
+            var inputs = new ArrayList<Buffer>(count);
+            var position = CLIENT_HEADER_SIZE + 5;
+            for (int i = 0; i < count && newestInput - i > lastForwardedInput; i++) {
+                if (position + 2 > data.length()) {
+                    return;
+                }
+                var size = data.getUnsignedShort(position);
+                if (position + 2 + size > data.length()) {
+                    return;
+                }
+                // Sliced, not copied
+                inputs.add(data.slice(position + 2, position + 2 + size));
+                position += 2 + size;
+            }
+            var oldestInput = newestInput - inputs.size() + 1;
+            if (lastForwardedInput >= 0 && oldestInput > lastForwardedInput + 1) {
+                inputsLost += oldestInput - lastForwardedInput - 1;
+            }
+            for (int i = inputs.size() - 1; i >= 0; i--) {
+                inputServer.forward(inputs.get(i));
+            }
+            // All but the newest one should have arrived with earlier packets
+            if (lastForwardedInput >= 0) {
+                inputsRecovered += inputs.size() - 1;
+            }
+            lastForwardedInput = newestInput;
+        }
+
+        ClientStats getStats() {
+            var received = packetsReceived;
+            var expected = highestSequence - firstSequence + 1;
+            // Duplicates make up for lost packets here, as in RFC 3550
+            var lost = Math.max(0, expected - received);
+            var currentAudio = audio;
+            return new ClientStats(address.toString(),
+                    received,
+                    lost,
+                    packetsLate,
+                    jitterMillis,
+                    inputsRecovered,
+                    inputsLost,
+                    currentAudio != null ? currentAudio.chunksSent : 0,
+                    currentAudio != null ? currentAudio.chunksDropped : 0);
+        }
+    }
+
+    private final class AudioClient implements AudioServer.Client {
+        final SocketAddress address;
+        final AudioProtocol protocol;
+        boolean closed = false;
+        private boolean sending = false;
+        private long sequence = 0;
+        volatile long chunksSent = 0;
+        volatile long chunksDropped = 0;
+
+        AudioClient(SocketAddress address, AudioProtocol protocol) {
+            this.address = address;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public void write(Buffer message) {
+            if (closed) {
+                return;
+            }
+            if (sending) {
+                chunksDropped++;
+                return;
+            }
+
+            var header = Buffer.buffer(HEADER_SIZE)
+                    .appendByte((byte) AUDIO)
+                    .appendUnsignedInt(sequence++)
+                    .appendUnsignedInt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) & 0xFFFFFFFFL);
+            // The header is put in front of the chunk without copying it
+            var packet = Buffer.buffer(Unpooled.wrappedBuffer(header.getByteBuf(), message.getByteBuf()));
+            sending = true;
+            socket.send(packet, address.port(), address.host(), sent -> {
+                sending = false;
+                if (sent.succeeded()) {
+                    chunksSent++;
+                } else {
+                    chunksDropped++;
+                }
+            });
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            // The emulator is never held back, late chunks are dropped instead
+            return false;
+        }
+
+        @Override
+        public boolean coalesces() {
+            // Losing a packet should cost one chunk only
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.cbruegg.emuserver;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * A running melonDS process of a session and the verticle that serves its sockets. A session gets a new emulator
+ * when it wakes up from hibernation.
+ */
+final class Emulator {
+
+    private final Vertx vertx;
+    private final Process process;
+    private final CpuPlacement.Core core;
+    private final String deploymentId;
+    private final SessionVerticle verticle;
+    private final SaveGameWatcher.Registration saveWatch;
+
+    Emulator(Vertx vertx,
+             Process process,
+             CpuPlacement.Core core,
+             String deploymentId,
+             SessionVerticle verticle,
+             SaveGameWatcher.Registration saveWatch) {
+        this.vertx = vertx;
+        this.process = process;
+        this.core = core;
+        this.deploymentId = deploymentId;
+        this.verticle = verticle;
+        this.saveWatch = saveWatch;
+    }
+
+    SessionVerticle getVerticle() {
+        return verticle;
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Stops watching the save game, closes the sockets and stops melonDS.
+     *
+     * @return completed once the sockets have been closed
+     */
+    Future<Void> close() {
+        saveWatch.close();
+        Promise<Void> undeployed = Promise.promise();
+        vertx.undeploy(deploymentId, undeployed);
+        process.destroy();
+        ensureWaitFor(process);
+        core.close();
+        return undeployed.future();
+    }
+
+    private static void ensureWaitFor(Process process) {
+        while (true) {
+            try {
+                process.waitFor();
+                break;
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
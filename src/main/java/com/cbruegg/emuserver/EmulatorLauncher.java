@@ -0,0 +1,144 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.DsServerOutputReader;
+import com.cbruegg.emuserver.platform.ds.EncoderPool;
+import com.cbruegg.emuserver.platform.ds.FrameReader;
+import com.cbruegg.emuserver.platform.ds.QualityLadder;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts melonDS for sessions, on the least loaded core, and connects it to a {@link SessionVerticle}.
+ */
+final class EmulatorLauncher {
+
+    private final Vertx vertx;
+    private final CpuPlacement cpuPlacement;
+    private final File dsServer;
+    private final File dsServerBiosDir;
+    private final FrameReader frameReader;
+    private final WorkerExecutor videoEncoderExecutor;
+    private final EncoderPool encoderPool;
+    private final QualityLadder qualityLadder;
+    private final SaveGameWatcher saveGameWatcher;
+
+    EmulatorLauncher(Vertx vertx,
+                     CpuPlacement cpuPlacement,
+                     File dsServer,
+                     File dsServerBiosDir,
+                     FrameReader frameReader,
+                     WorkerExecutor videoEncoderExecutor,
+                     EncoderPool encoderPool,
+                     QualityLadder qualityLadder,
+                     SaveGameWatcher saveGameWatcher) {
+        this.vertx = vertx;
+        this.cpuPlacement = cpuPlacement;
+        this.dsServer = dsServer;
+        this.dsServerBiosDir = dsServerBiosDir;
+        this.frameReader = frameReader;
+        this.videoEncoderExecutor = videoEncoderExecutor;
+        this.encoderPool = encoderPool;
+        this.qualityLadder = qualityLadder;
+        this.saveGameWatcher = saveGameWatcher;
+    }
+
+    /**
+     * @param log     gets the output of melonDS
+     * @param cookies of the datagram clients, kept across launches of the same session
+     * @param ports   the ports the sockets of the session should listen on, where available
+     * @param stop    set if the save game can't be read anymore
+     */
+    Emulator launch(File rom,
+                    File saveGame,
+                    SaveGameFile saveGameFile,
+                    SessionMetrics metrics,
+                    SessionLog log,
+                    DatagramCookies cookies,
+                    SessionVerticle.Ports ports,
+                    AtomicBoolean stop) throws IOException, InterruptedException {
+        var core = cpuPlacement.acquire();
+        if (core == null) {
+            throw new IOException("All cores have reached their session cap!");
+        }
+        try {
+            return launch(core, rom, saveGame, saveGameFile, metrics, log, cookies, ports, stop);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            core.close();
+            throw e;
+        }
+    }
+
+    private Emulator launch(CpuPlacement.Core core,
+                            File rom,
+                            File saveGame,
+                            SaveGameFile saveGameFile,
+                            SessionMetrics metrics,
+                            SessionLog log,
+                            DatagramCookies cookies,
+                            SessionVerticle.Ports ports,
+                            AtomicBoolean stop) throws IOException, InterruptedException {
+        var dsServerProcess = new ProcessBuilder(cpuPlacement.command(core, List.of(
+                dsServer.getPath(),
+                dsServerBiosDir.toString(),
+                rom.toString(),
+                saveGame.toString())))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        var dsServerReader = new DsServerOutputReader(dsServerProcess.getInputStream(), log);
+        var portSpec = dsServerReader.readPortSpec();
+        if (portSpec == null) {
+            dsServerProcess.destroy();
+            throw new IOException("melonDS exited before it announced its ports!");
+        }
+
+        var screenChannel = SocketChannel.open(new InetSocketAddress("localhost", portSpec.screenSocketPort()));
+        var verticle = new SessionVerticle(portSpec, ports, screenChannel, frameReader, videoEncoderExecutor, encoderPool, qualityLadder, saveGameFile, cookies, metrics);
+        var deployment = new CompletableFuture<String>();
+        vertx.deployVerticle(verticle, deployed -> {
+            if (deployed.succeeded()) {
+                deployment.complete(deployed.result());
+            } else {
+                deployment.completeExceptionally(deployed.cause());
+            }
+        });
+        String deploymentId;
+        try {
+            deploymentId = deployment.get();
+        } catch (ExecutionException e) {
+            dsServerProcess.destroy();
+            throw new IOException("Could not start session sockets!", e.getCause());
+        }
+        var saveGameNotifier = verticle.getSaveGameNotifier();
+
+        SaveGameWatcher.Registration saveWatch;
+        try {
+            saveWatch = saveGameWatcher.register(saveGame.toPath(), () -> {
+                try {
+                    if (saveGameFile.refresh()) {
+                        saveGameNotifier.onChanged();
+                    }
+                } catch (IOException e) {
+                    // TODO Send proper error to client
+                    stop.set(true);
+                }
+            });
+        } catch (IOException e) {
+            vertx.undeploy(deploymentId);
+            dsServerProcess.destroy();
+            throw e;
+        }
+
+        return new Emulator(vertx, dsServerProcess, core, deploymentId, verticle, saveWatch);
+    }
+}
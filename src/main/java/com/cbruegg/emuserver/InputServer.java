@@ -0,0 +1,97 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.EmulatorInput;
+import com.cbruegg.emuserver.platform.ds.LatencyTracer;
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts input from any number of clients. Each message is prefixed with its size as a big-endian int32,
+ * the rest of it is forwarded to melonDS as it is.
+ */
+final class InputServer {
+
+    private static final int HEADER_SIZE = 4;
+
+    private final EmulatorInput emulatorInput;
+    private final LatencyTracer latencyTracer;
+    private final SessionMetrics metrics;
+    private final AtomicInteger clients = new AtomicInteger();
+    private volatile long lastInputNanos = System.nanoTime();
+
+    InputServer(EmulatorInput emulatorInput, LatencyTracer latencyTracer, SessionMetrics metrics) {
+        this.emulatorInput = emulatorInput;
+        this.latencyTracer = latencyTracer;
+        this.metrics = metrics;
+    }
+
+    void onClient(ClientConnection connection) {
+        var parser = RecordParser.newFixed(HEADER_SIZE);
+        var readingHeader = new boolean[]{true};
+        parser.handler(record -> {
+            if (!readingHeader[0]) {
+                forward(record);
+                readingHeader[0] = true;
+                parser.fixedSizeMode(HEADER_SIZE);
+                return;
+            }
+
+            var size = record.getInt(0);
+            if (size < 0) {
+                System.err.println("Invalid input size " + size + "!");
+                connection.close();
+            } else if (size > 0) {
+                readingHeader[0] = false;
+                parser.fixedSizeMode(size);
+            }
+        });
+        onClientConnected();
+        connection.handler(parser);
+        connection.exceptionHandler(Throwable::printStackTrace);
+        connection.closeHandler(v -> onClientDisconnected());
+    }
+
+    /**
+     * Forwards one message, without its size, to melonDS. Must be called on the context of the session.
+     */
+    void forward(Buffer input) {
+        var now = System.nanoTime();
+        lastInputNanos = now;
+        var trace = latencyTracer.onInputReceived(now);
+        emulatorInput.forward(input, written -> {
+            if (written.succeeded()) {
+                latencyTracer.onInputForwarded(trace, System.nanoTime());
+                metrics.onInputCommand();
+            }
+        });
+    }
+
+    /**
+     * For clients that send their input other than through {@link #onClient(ClientConnection)}, so they are counted as well.
+     */
+    void onClientConnected() {
+        clients.incrementAndGet();
+    }
+
+    void onClientDisconnected() {
+        clients.decrementAndGet();
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    int getClientCount() {
+        return clients.get();
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    long getLastInputNanos() {
+        return lastInputNanos;
+    }
+}
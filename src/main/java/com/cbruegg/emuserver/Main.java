@@ -1,38 +1,62 @@
 package com.cbruegg.emuserver;
 
-import com.cbruegg.emuserver.platform.ds.DsServerOutputReader;
-import com.cbruegg.emuserver.platform.ds.JpegCompressor;
+import com.cbruegg.emuserver.cluster.Cluster;
+import com.cbruegg.emuserver.metrics.JvmMetrics;
+import com.cbruegg.emuserver.metrics.MetricsRegistry;
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.EncoderPool;
+import com.cbruegg.emuserver.platform.ds.FrameReader;
+import com.cbruegg.emuserver.platform.ds.LatencyTracer;
+import com.cbruegg.emuserver.platform.ds.QualityLadder;
 import com.cbruegg.emuserver.serialization.UUIDAdapter;
-import com.cbruegg.emuserver.utils.ConcurrentUtils;
-import com.cbruegg.emuserver.utils.Debouncer;
 import com.cbruegg.emuserver.utils.IOUtils;
+import com.cbruegg.emuserver.utils.LogSink;
+import com.cbruegg.emuserver.utils.ReadStreamInputStream;
+import com.cbruegg.emuserver.utils.WriteStreamOutputStream;
 import com.squareup.moshi.Moshi;
+import com.squareup.moshi.Types;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 // TODO Remove ffmpeg
-// TODO Kill stale sessions
 
 public class Main {
+
+    private static final int SAVE_STATE_CHUNK_SIZE = 0x10000;
+    private static final long UPLOAD_BUFFERED_BYTES = 0x100000;
+    private static final double MAX_SESSION_START_WAIT_SECONDS = 30;
+    // Sessions end at the pace of their players, so there is nothing better to estimate from
+    private static final long CAPACITY_RETRY_AFTER_SECONDS = 60;
+    private static final int HTTP_TEMPORARY_REDIRECT = 307;
+    // Marks requests that have been redirected to the instance that owns them, which serves them in any case
+    private static final String ROUTED_PARAM = "routed";
+    // Set on the routing context of requests for ROMs that are only stored on the instance it names
+    private static final String ROM_HOLDER_KEY = "romHolder";
+
     public static void main(String[] args) {
-        var romDir = new File("roms");
+        var romDir = new File(Config.ROM_DIR);
         if (!romDir.exists() && !romDir.mkdirs()) {
             System.err.println("Could not create ROM directory " + romDir + ", exiting!");
             return;
@@ -42,58 +66,330 @@ public class Main {
             System.err.println("Could not create NDS ROM directory " + romDirNds + ", exiting!");
             return;
         }
+        RomStore romStoreNds;
+        try {
+            romStoreNds = new RomStore(romDirNds.toPath(), ".nds");
+        } catch (IOException e) {
+            System.err.println("Could not index NDS ROM directory " + romDirNds + ", exiting!");
+            e.printStackTrace();
+            return;
+        }
 
         var melonDsServerFile = new File("C:\\Users\\mail\\CLionProjects\\melonDS\\build\\dist-server\\melonDS-server.exe");
         var melonDsBiosDir = new File("C:\\Users\\mail\\CLionProjects\\melonDS\\bios");
 
         var moshi = new Moshi.Builder().add(UUID.class, new UUIDAdapter()).build();
+        var sessionStatsAdapter = moshi.adapter(Session.Stats.class);
+        var latencyAdapter = moshi.adapter(LatencyTracer.Snapshot.class);
+        var uploadStatusAdapter = moshi.adapter(ChunkedRomUpload.Status.class);
+        var sessionStartAdapter = moshi.adapter(SessionStarts.Status.class);
         var publicSessionAdapter = moshi.adapter(Session.Public.class);
+        var clusterMembersAdapter = moshi.<List<Cluster.Member>>adapter(Types.newParameterizedType(List.class, Cluster.Member.class));
 
         var vertx = Vertx.vertx();
+        var clusterMembers = Arrays.stream(Config.CLUSTER_MEMBERS.split(",")).map(String::trim).filter(member -> !member.isEmpty()).collect(Collectors.toList());
+        var cluster = new Cluster(vertx, Config.CLUSTER_SELF, clusterMembers, Config.CLUSTER_HEALTH_INTERVAL_MS);
+        var romReplicationClient = HttpClient.newHttpClient();
         var httpServer = vertx.createHttpServer();
         var router = Router.router(vertx);
         var bodyHandler = BodyHandler.create(true);
         var sessions = Collections.synchronizedMap(new HashMap<UUID, Session>());
+        var metricsRegistry = new MetricsRegistry();
+        metricsRegistry.gauge("emuserver_sessions_active", "Sessions that are running.", sessions::size);
+        JvmMetrics.register(metricsRegistry);
+        var logSink = new LogSink(System.out, Config.LOG_QUEUE_SIZE);
+        metricsRegistry.gauge("emuserver_log_lines_dropped", "Log lines of melonDS that were dropped because they could not be written fast enough.", logSink::getDroppedLines);
+        var encoderPool = new EncoderPool(Config.VIDEO_ENCODER_THREADS, Config.VIDEO_ENCODER_QUEUE_SIZE);
+        // Whole frames are encoded here, separate from the encoder pool that split screens wait for
+        var videoEncoderExecutor = vertx.createSharedWorkerExecutor("VideoFrameEncoder", Config.VIDEO_ENCODER_THREADS);
+        FrameReader frameReader;
+        try {
+            frameReader = new FrameReader();
+        } catch (IOException e) {
+            System.err.println("Could not start frame reader, exiting!");
+            e.printStackTrace();
+            return;
+        }
+        SaveGameWatcher saveGameWatcher;
+        try {
+            saveGameWatcher = new SaveGameWatcher(Config.SAVE_GAME_DEBOUNCE_MS, Config.SAVE_GAME_READER_THREADS);
+        } catch (IOException e) {
+            System.err.println("Could not start save game watcher, exiting!");
+            e.printStackTrace();
+            return;
+        }
+        var rewindExecutor = vertx.createSharedWorkerExecutor("RewindCapture", Runtime.getRuntime().availableProcessors());
+        var qualityLadder = new QualityLadder(Config.VIDEO_MAX_QUALITY, Config.VIDEO_MIN_QUALITY, Config.VIDEO_QUALITY_STEPS, Config.VIDEO_MAX_FRAME_INTERVAL);
+        var cpus = Runtime.getRuntime().availableProcessors();
+        // At least one core is left for melonDS
+        var serverCores = Math.max(0, Math.min(Config.CPU_SERVER_CORES, cpus - 1));
+        var cpuPlacement = new CpuPlacement(IntStream.range(serverCores, cpus).toArray(), Config.CPU_SESSIONS_PER_CORE, Config.CPU_PINNING);
+        if (Config.CPU_PINNING && serverCores > 0) {
+            try {
+                CpuPlacement.pinCurrentProcess(IntStream.range(0, serverCores).toArray());
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Could not pin server to its cores, continuing without!");
+                e.printStackTrace();
+            }
+        }
+        var emulatorLauncher = new EmulatorLauncher(vertx, cpuPlacement, melonDsServerFile, melonDsBiosDir, frameReader, videoEncoderExecutor, encoderPool, qualityLadder, saveGameWatcher);
+        SessionPool.Factory warmSessionFactory = md5 -> {
+            var rom = romStoreNds.get(md5);
+            if (rom == null) {
+                throw new IOException("Could not find ROM for MD5 " + md5);
+            }
+            return createNewSession(vertx, emulatorLauncher, cluster.newOwnedId(), rom.path().toFile(), null, metricsRegistry, logSink);
+        };
+        // Warm sessions are started one at a time, so they don't compete with sessions that are requested
+        var sessionPool = Config.SESSION_POOL_SIZE > 0
+                ? new SessionPool(vertx, vertx.createSharedWorkerExecutor("SessionPool", 1), warmSessionFactory, cpuPlacement, Config.SESSION_POOL_SIZE, Config.SESSION_POOL_HALF_LIFE_MS, metricsRegistry)
+                : null;
+        var sessionStarts = new SessionStarts(vertx,
+                vertx.createSharedWorkerExecutor("SessionStart", Config.SESSION_START_CONCURRENCY),
+                cluster::newOwnedId,
+                Config.SESSION_START_CONCURRENCY,
+                Config.SESSION_START_QUEUE_SIZE,
+                metricsRegistry);
+        if (Config.SESSION_IDLE_TIMEOUT_MS > 0) {
+            var reaperExecutor = vertx.createSharedWorkerExecutor("SessionReaper", 1);
+            vertx.setPeriodic(Math.max(1, Config.SESSION_IDLE_TIMEOUT_MS / 4), timerId -> reaperExecutor.executeBlocking(promise -> {
+                hibernateIdleSessions(sessions, sessionStarts, TimeUnit.MILLISECONDS.toNanos(Config.SESSION_IDLE_TIMEOUT_MS));
+                promise.complete();
+            }, true, null));
+        }
+        metricsRegistry.gauge("emuserver_sessions_hibernating", "Sessions that are hibernating.", () -> {
+            synchronized (sessions) {
+                return sessions.values().stream().filter(Session::isHibernating).count();
+            }
+        });
+
+        // Sessions, their starts and uploads are served by the instance that created them, which their ID tells.
+        // ROMs are served by an instance that has them, and new ones are stored by their owner. Sessions are started
+        // by whichever instance is asked, with the ROM copied from an instance that has it.
+        router.route("/roms/nds/*").handler(event -> {
+            var path = event.request().path();
+            if (!cluster.isClustered() || event.request().getParam(ROUTED_PARAM) != null) {
+                event.next();
+                return;
+            }
+
+            var id = getClusterId(path);
+            if (id != null) {
+                var creator = cluster.creatorOf(id);
+                if (creator == null || creator.equals(cluster.getSelf()) || sessions.containsKey(id)) {
+                    event.next();
+                } else {
+                    redirectToMember(event, creator);
+                }
+                return;
+            }
+
+            var md5 = getRomMd5(path);
+            if (romStoreNds.get(md5) != null || !RomStore.isValidMd5(md5)) {
+                event.next();
+                return;
+            }
+            // Not necessarily on its owner, which changes as members go down or come back
+            event.request().pause();
+            cluster.findMember("/roms/nds/" + md5 + "/exists?" + ROUTED_PARAM + "=1", holder -> {
+                var startsSession = event.request().method() == HttpMethod.POST && path.endsWith("/session");
+                if (startsSession || (holder == null && cluster.isOwnedBySelf(md5))) {
+                    event.put(ROM_HOLDER_KEY, holder);
+                    event.next();
+                } else {
+                    redirectToMember(event, holder != null ? holder : cluster.ownerOf(md5));
+                }
+                event.request().resume();
+            });
+        });
+        // Streamed while it is uploaded, so it must come before the body handler stores it in a file
+        router.post("/roms/nds/:rommd5/session/:uuid/savestate").handler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
+                return;
+            }
+
+            streamUpload(event, "Must supply one save state!", saveState -> loadSaveState(vertx, session, saveState, event.response()));
+        });
+        // Streamed into the ROM store, for the same reason
+        router.post("/roms/nds/:rommd5").handler(event -> {
+            var md5 = event.pathParam("rommd5");
+            if (!RomStore.isValidMd5(md5)) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Invalid MD5 " + md5);
+                return;
+            }
 
+            streamUpload(event, "Exactly one uploaded file is required!", rom -> vertx.<String>executeBlocking(promise -> {
+                try (rom) {
+                    promise.complete(romStoreNds.ingest(md5, rom));
+                } catch (IOException e) {
+                    promise.fail(e);
+                }
+            }, false, ingested -> {
+                if (ingested.failed()) {
+                    ingested.cause().printStackTrace();
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Failed to save uploaded file!");
+                } else if (md5.equals(ingested.result())) {
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CREATED).end("Upload successful.");
+                } else {
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("MD5 does not match, actual MD5 is " + ingested.result());
+                }
+            }));
+        });
+        // The video, audio, input and save game sockets over one WebSocket, optionally only those listed in ?channels=
+        // The upgrade needs the request unread, so this comes before the body handler as well.
+        router.get("/roms/nds/:rommd5/session/:uuid/connect").handler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
+                return;
+            }
+
+            Set<MultiplexedConnection.Channel> channels;
+            try {
+                var channelNames = event.request().getParam("channels");
+                channels = channelNames != null ? MultiplexedConnection.Channel.parse(channelNames) : EnumSet.allOf(MultiplexedConnection.Channel.class);
+            } catch (IllegalArgumentException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Invalid channels!");
+                return;
+            }
+            if (session.isHibernating()) {
+                // Woken up in the background like a session that is started, the client connects again once it's up
+                sessionStarts.submit(() -> {
+                    session.wake();
+                    return session;
+                });
+                event.response()
+                        .putHeader("content-type", "text/plain")
+                        .putHeader("retry-after", String.valueOf(sessionStarts.getRetryAfterSeconds()))
+                        .setStatusCode(HttpURLConnection.HTTP_UNAVAILABLE)
+                        .end("Session is waking up, try again later.");
+                return;
+            }
+
+            var webSocket = event.request().upgrade();
+            if (!session.connectMultiplexed(webSocket, channels)) {
+                // Started hibernating in the meantime
+                webSocket.close();
+            }
+        });
         router.route().handler(bodyHandler);
 
-        router.get("/roms/nds/:rommd5/exists").handler(event -> {
+        router.get("/roms/nds/:rommd5").handler(event -> {
             var md5 = event.pathParam("rommd5");
-            var exists = new File(romDirNds, md5 + ".nds").exists();
+            var rom = romStoreNds.get(md5);
+            if (rom == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Could not find ROM for MD5 " + md5);
+            } else {
+                event.response().putHeader("content-type", "application/octet-stream").sendFile(rom.path().toString());
+            }
+        });
+        router.get("/roms/nds/:rommd5/exists").handler(event -> {
+            var exists = romStoreNds.get(event.pathParam("rommd5")) != null;
             event.response().putHeader("content-type", "text/plain").end(String.valueOf(exists));
         });
 
-        router.post("/roms/nds/:rommd5").blockingHandler(event -> {
-            if (event.fileUploads().size() != 1) {
-                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Exactly one uploaded file is required!");
-                event.fileUploads().stream().map(upload -> new File(upload.uploadedFileName())).forEach(File::delete);
-            } else {
-                var upload = event.fileUploads().stream().findFirst().get();
-                var uploadedFile = new File(upload.uploadedFileName());
-                String actualMd5;
-                try {
-                    actualMd5 = IOUtils.md5(uploadedFile);
-                } catch (IOException e) {
-                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Failed to compute MD5 of uploaded file!");
-                    e.printStackTrace();
-                    return;
-                }
-                if (Objects.equals(event.pathParam("rommd5"), actualMd5)) {
-                    var targetFile = new File(romDirNds, actualMd5 + ".nds");
-                    if (IOUtils.moveOrCopy(uploadedFile, targetFile)) {
-                        event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CREATED).end("Upload successful.");
-                    } else {
-                        event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Failed to save uploaded file!");
-                    }
+        router.post("/roms/nds/:rommd5/uploads").blockingHandler(event -> {
+            var md5 = event.pathParam("rommd5");
+            if (!RomStore.isValidMd5(md5)) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Invalid MD5 " + md5);
+                return;
+            }
+            if (romStoreNds.get(md5) != null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CONFLICT).end("ROM exists already.");
+                return;
+            }
+
+            try {
+                var size = Long.parseLong(Objects.requireNonNullElse(event.request().getParam("size"), ""));
+                var upload = romStoreNds.createUpload(cluster.newOwnedId(), md5, size, Config.ROM_UPLOAD_CHUNK_SIZE);
+                event.response().putHeader("content-type", "application/json").setStatusCode(HttpURLConnection.HTTP_CREATED).end(uploadStatusAdapter.toJson(upload.getStatus()));
+            } catch (IllegalArgumentException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Must supply a valid ROM size! " + e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create upload!");
+            }
+        }, false);
+        router.get("/roms/nds/:rommd5/uploads/:id").handler(event -> {
+            var upload = findUpload(event, romStoreNds);
+            if (upload != null) {
+                event.response().putHeader("content-type", "application/json").end(uploadStatusAdapter.toJson(upload.getStatus()));
+            }
+        });
+        // Chunks are written in parallel, so uploads can use several connections
+        router.put("/roms/nds/:rommd5/uploads/:id/chunks/:index").blockingHandler(event -> {
+            var upload = findUpload(event, romStoreNds);
+            if (upload == null) {
+                return;
+            }
+
+            try {
+                var index = Integer.parseInt(event.pathParam("index"));
+                var contentMd5 = event.request().getHeader("content-md5");
+                var expectedMd5 = contentMd5 != null ? Base64.getDecoder().decode(contentMd5) : null;
+                upload.writeChunk(index, event.getBody().getBytes(), expectedMd5);
+                event.response().setStatusCode(HttpURLConnection.HTTP_NO_CONTENT).end();
+            } catch (IllegalArgumentException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not write chunk!");
+            }
+        }, false);
+        router.post("/roms/nds/:rommd5/uploads/:id/complete").blockingHandler(event -> {
+            // A retry after the upload has been completed and removed
+            if (romStoreNds.get(event.pathParam("rommd5")) != null && lookUpUpload(event, romStoreNds) == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CREATED).end("Upload successful.");
+                return;
+            }
+
+            var upload = findUpload(event, romStoreNds);
+            if (upload == null) {
+                return;
+            }
+
+            try {
+                var actualMd5 = romStoreNds.completeUpload(upload);
+                if (actualMd5.equals(upload.getMd5())) {
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CREATED).end("Upload successful.");
                 } else {
                     event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("MD5 does not match, actual MD5 is " + actualMd5);
                 }
+            } catch (IllegalStateException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CONFLICT).end(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Failed to save uploaded file!");
             }
-        });
-        router.post("/roms/nds/:rommd5/session").blockingHandler(event -> {
+        }, false);
+        router.delete("/roms/nds/:rommd5/uploads/:id").blockingHandler(event -> {
+            var upload = findUpload(event, romStoreNds);
+            if (upload == null) {
+                return;
+            }
+
+            try {
+                romStoreNds.cancelUpload(upload);
+                event.response().putHeader("content-type", "text/plain").end("Upload has been cancelled.");
+            } catch (IOException e) {
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not cancel upload!");
+            }
+        }, false);
+        vertx.setPeriodic(Math.max(1, Config.ROM_UPLOAD_EXPIRY_MS / 4), timerId -> vertx.executeBlocking(promise -> {
+            romStoreNds.expireUploads(TimeUnit.MILLISECONDS.toNanos(Config.ROM_UPLOAD_EXPIRY_MS));
+            promise.complete();
+        }, false, null));
+        // Answered right away, the session is started in the background and its status polled
+        router.post("/roms/nds/:rommd5/session").handler(event -> {
             var md5 = event.pathParam("rommd5");
-            var romFile = new File(romDirNds, md5 + ".nds");
-            if (!romFile.exists()) {
+            // ROMs are copied from an instance that has them when a session of them is started elsewhere
+            String romHolder = event.get(ROM_HOLDER_KEY);
+            if (!RomStore.isValidMd5(md5) || (romStoreNds.get(md5) == null && romHolder == null)) {
                 event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Could not find ROM for MD5 " + md5);
                 return;
             }
@@ -105,18 +401,93 @@ public class Main {
             }
 
             var initialSaveGame = fileUploads.stream().findFirst().map(upload -> new File(upload.uploadedFileName())).orElse(null);
-            try {
+            // Warm sessions have been placed on a core already
+            var warm = initialSaveGame == null && sessionPool != null && sessionPool.hasWarm(md5);
+            if (!warm && cpuPlacement.getFreeSlots() <= sessionStarts.getPending()) {
+                event.response()
+                        .putHeader("content-type", "text/plain")
+                        .putHeader("retry-after", String.valueOf(CAPACITY_RETRY_AFTER_SECONDS))
+                        .setStatusCode(HttpURLConnection.HTTP_UNAVAILABLE)
+                        .end("The server is at capacity, try again later.");
+                return;
+            }
 
-                var session = createNewSession(melonDsServerFile, melonDsBiosDir, romFile, initialSaveGame);
+            var start = sessionStarts.submit(() -> {
+                // Warm sessions have booted without a save game, which melonDS only reads on boot
+                var session = initialSaveGame == null && sessionPool != null ? sessionPool.claim(md5) : null;
+                if (session == null) {
+                    var rom = romStoreNds.get(md5);
+                    if (rom == null) {
+                        rom = replicateRom(romReplicationClient, romStoreNds, romHolder, md5);
+                    }
+                    session = createNewSession(vertx, emulatorLauncher, cluster.newOwnedId(), rom.path().toFile(), initialSaveGame, metricsRegistry, logSink);
+                }
                 sessions.put(session.getUuid(), session);
+                if (Config.REWIND_INTERVAL_MS > 0) {
+                    session.startRewindCapture(rewindExecutor, Config.REWIND_INTERVAL_MS);
+                }
+                return session;
+            });
+            if (start == null) {
+                event.response()
+                        .putHeader("content-type", "text/plain")
+                        .putHeader("retry-after", String.valueOf(sessionStarts.getRetryAfterSeconds()))
+                        .setStatusCode(HttpURLConnection.HTTP_UNAVAILABLE)
+                        .end("Too many sessions are being started, try again later.");
+                return;
+            }
 
-                var publicSession = session.toPublic();
-                event.response().putHeader("content-type", "application/json").setStatusCode(HttpURLConnection.HTTP_CREATED).end(publicSessionAdapter.toJson(publicSession));
-            } catch (IOException | InterruptedException e) {
-                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create session!");
+            event.response()
+                    .putHeader("content-type", "application/json")
+                    .putHeader("location", "/roms/nds/" + md5 + "/session-starts/" + start.id())
+                    .setStatusCode(HttpURLConnection.HTTP_ACCEPTED)
+                    .end(sessionStartAdapter.toJson(start));
+        });
+        // With ?wait=N, responds once the session has started or after N seconds, whichever comes first
+        router.get("/roms/nds/:rommd5/session-starts/:id").handler(event -> {
+            UUID id;
+            long waitMs;
+            try {
+                id = UUID.fromString(event.pathParam("id"));
+                var wait = event.request().getParam("wait");
+                waitMs = wait != null ? (long) (Math.min(Double.parseDouble(wait), MAX_SESSION_START_WAIT_SECONDS) * 1000) : 0;
+            } catch (IllegalArgumentException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Invalid session start or wait time!");
+                return;
+            }
+
+            Handler<SessionStarts.Status> respond = status -> {
+                if (status == null) {
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session start " + id + " does not exist!");
+                } else {
+                    event.response().putHeader("content-type", "application/json").end(sessionStartAdapter.toJson(status));
+                }
+            };
+            if (waitMs > 0) {
+                sessionStarts.awaitFinished(id, waitMs, respond);
+            } else {
+                respond.handle(sessionStarts.getStatus(id));
             }
         });
-        router.delete("/roms/nds/:rommd5/session/:uuid").handler(event -> {
+        // Also wakes the session up if it is hibernating
+        router.get("/roms/nds/:rommd5/session/:uuid").blockingHandler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
+                return;
+            }
+
+            try {
+                session.wake();
+                event.response().putHeader("content-type", "application/json").end(publicSessionAdapter.toJson(session.toPublic()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not wake session up!");
+            }
+        }, false);
+        // Stopping waits for melonDS to exit
+        router.delete("/roms/nds/:rommd5/session/:uuid").blockingHandler(event -> {
             var uuid = UUID.fromString(event.pathParam("uuid"));
             var session = sessions.remove(uuid);
             if (session == null) {
@@ -125,7 +496,7 @@ public class Main {
                 session.stop();
                 event.response().putHeader("content-type", "text/plain").end("Session has been stopped.");
             }
-        });
+        }, false);
         router.post("/roms/nds/:rommd5/session/:uuid/savegame").blockingHandler(event -> {
             var uuid = UUID.fromString(event.pathParam("uuid"));
             var session = sessions.get(uuid);
@@ -140,14 +511,10 @@ public class Main {
                 return;
             }
 
-            var saveGame = session.getSaveGame();
             var uploadedSaveGame = fileUploads.stream().findFirst().map(upload -> new File(upload.uploadedFileName())).orElseThrow();
 
             try {
-                var uploadedSaveGameBytes = Files.readAllBytes(uploadedSaveGame.toPath());
-                session.getLastKnownSaveGameRef().set(uploadedSaveGameBytes);
-                Files.write(saveGame.toPath(), uploadedSaveGameBytes);
-                session.onSaveGameUploaded();
+                session.uploadSaveGame(Files.readAllBytes(uploadedSaveGame.toPath()));
                 event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_OK).end();
             } catch (IOException e) {
                 event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create session!");
@@ -163,24 +530,59 @@ public class Main {
                 event.response().putHeader("content-type", "application/octet-stream").sendFile(saveGame.getAbsolutePath()).end();
             }
         });
-        router.get("/roms/nds/:rommd5/session/:uuid/savestate").blockingHandler(event -> {
+        router.get("/roms/nds/:rommd5/session/:uuid/stats").handler(event -> {
             var uuid = UUID.fromString(event.pathParam("uuid"));
             var session = sessions.get(uuid);
             if (session == null) {
                 event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
             } else {
+                event.response().putHeader("content-type", "application/json").end(sessionStatsAdapter.toJson(session.getStats()));
+            }
+        });
+        router.get("/roms/nds/:rommd5/session/:uuid/latency").handler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
+            } else {
+                event.response().putHeader("content-type", "application/json").end(latencyAdapter.toJson(session.getLatency()));
+            }
+        });
+        router.get("/roms/nds/:rommd5/session/:uuid/savestate").handler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
+                return;
+            }
+
+            var response = event.response();
+            response.putHeader("content-type", "application/octet-stream").setChunked(true);
+            var saveStateStream = new WriteStreamOutputStream(response, SAVE_STATE_CHUNK_SIZE);
+            response.closeHandler(v -> saveStateStream.abort());
+            vertx.<Void>executeBlocking(promise -> {
                 try {
-                    var saveState = session.getSaveState();
-                    event.response().putHeader("content-type", "application/octet-stream")
-                            .sendFile(saveState.toString())
-                            .endHandler(endEvent -> saveState.toFile().delete())
-                            .end();
+                    session.writeSaveState(saveStateStream);
+                    promise.complete();
                 } catch (IOException e) {
-                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create session!");
+                    promise.fail(e);
                 }
-            }
+            }, false, written -> {
+                if (written.succeeded()) {
+                    response.end();
+                } else if (!saveStateStream.hasWritten()) {
+                    written.cause().printStackTrace();
+                    response.setChunked(false).putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create save state!");
+                } else {
+                    // The status has been sent already, so the client can only notice the truncated body
+                    written.cause().printStackTrace();
+                    response.close();
+                }
+            });
         });
-        router.post("/roms/nds/:rommd5/session/:uuid/savestate").blockingHandler(event -> {
+
+        // The newest log lines of melonDS, or only the last ?lines=N of them
+        router.get("/roms/nds/:rommd5/session/:uuid/log").handler(event -> {
             var uuid = UUID.fromString(event.pathParam("uuid"));
             var session = sessions.get(uuid);
             if (session == null) {
@@ -188,28 +590,69 @@ public class Main {
                 return;
             }
 
-            var fileUploads = event.fileUploads();
-            if (fileUploads.size() != 1) {
-                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Must supply one savegame!");
+            int count;
+            try {
+                var lines = event.request().getParam("lines");
+                count = lines != null ? Integer.parseInt(lines) : Integer.MAX_VALUE;
+            } catch (NumberFormatException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Invalid number of lines!");
+                return;
+            }
+            var tail = Buffer.buffer();
+            for (byte[] line : session.getLog().tail(count)) {
+                tail.appendBytes(line).appendByte((byte) '\n');
+            }
+            event.response().putHeader("content-type", "text/plain; charset=utf-8").end(tail);
+        });
+        router.post("/roms/nds/:rommd5/session/:uuid/rewind").blockingHandler(event -> {
+            var uuid = UUID.fromString(event.pathParam("uuid"));
+            var session = sessions.get(uuid);
+            if (session == null) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Session with UUID " + uuid + " does not exist!");
                 return;
             }
 
-            var uploadedSaveState = fileUploads.stream().findFirst().map(upload -> new File(upload.uploadedFileName())).orElseThrow();
+            double seconds;
+            try {
+                seconds = Double.parseDouble(Objects.requireNonNullElse(event.request().getParam("seconds"), ""));
+            } catch (NumberFormatException e) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end("Must supply the seconds to rewind!");
+                return;
+            }
 
             try {
-                session.loadSaveState(uploadedSaveState.toPath());
-                uploadedSaveState.deleteOnExit();
-                uploadedSaveState.delete();
-                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_OK).end();
+                var restored = session.rewind((long) (seconds * 1000));
+                if (restored == null) {
+                    event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_CONFLICT).end("No state to rewind to yet!");
+                } else {
+                    // The seconds that have actually been rewound
+                    event.response().putHeader("content-type", "text/plain").end(String.valueOf(restored.ageNanos() / 1e9));
+                }
             } catch (IOException e) {
-                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not create session!");
+                e.printStackTrace();
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not rewind!");
             }
+        }, false);
+        router.get(Cluster.HEALTH_PATH).handler(event -> {
+            event.response().putHeader("content-type", "text/plain").end("OK");
+        });
+        router.get("/cluster/members").handler(event -> {
+            event.response().putHeader("content-type", "application/json").end(clusterMembersAdapter.toJson(cluster.getMembers()));
+        });
+        router.get("/metrics").handler(event -> {
+            event.response().putHeader("content-type", MetricsRegistry.CONTENT_TYPE).end(metricsRegistry.scrape());
         });
 
-        httpServer.requestHandler(router).listen(1114);
+        httpServer.requestHandler(router).listen(Config.HTTP_PORT);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             sessions.values().forEach(Session::stop);
+            if (sessionPool != null) {
+                sessionPool.close();
+            }
+            // Only once the sessions are stopped, which encode and read frames until then
+            encoderPool.close();
+            frameReader.close();
         }));
 
         //noinspection InfiniteLoopStatement
@@ -223,256 +666,190 @@ public class Main {
         }
     }
 
-    private static Session createNewSession(File dsServer, File dsServerBiosDir, File rom, @Nullable File initialSaveGame) throws IOException, InterruptedException {
-        var sessionId = UUID.randomUUID();
-        var sessionDir = Files.createTempDirectory("emuserver-" + sessionId);
-        var saveGame = new File(sessionDir.toFile(), rom.getName() + ".dsv");
-        var stop = new AtomicBoolean(false);
+    /**
+     * Responds with 404 if the upload does not exist.
+     */
+    @Nullable
+    private static ChunkedRomUpload findUpload(RoutingContext event, RomStore romStore) {
+        var upload = lookUpUpload(event, romStore);
+        if (upload == null) {
+            event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_NOT_FOUND).end("Upload " + event.pathParam("id") + " does not exist!");
+        }
+        return upload;
+    }
 
-        var lastKnownSaveGameBytes = new AtomicReference<>(initialSaveGame != null ? Files.readAllBytes(initialSaveGame.toPath()) : new byte[0]);
+    /**
+     * Like {@link #findUpload(RoutingContext, RomStore)}, but doesn't respond.
+     */
+    @Nullable
+    private static ChunkedRomUpload lookUpUpload(RoutingContext event, RomStore romStore) {
+        ChunkedRomUpload upload = null;
+        try {
+            upload = romStore.getUpload(UUID.fromString(event.pathParam("id")));
+        } catch (IllegalArgumentException ignored) {
+        }
+        return upload != null && upload.getMd5().equals(event.pathParam("rommd5")) ? upload : null;
+    }
 
-        if (initialSaveGame != null && !IOUtils.moveOrCopy(initialSaveGame, saveGame)) {
-            throw new IOException("Could not import initial savegame!");
+    /**
+     * Calls {@code handler} with the body of the request as it arrives, or with its first file if it is a multipart
+     * request. Must be called before the body handler, while the body hasn't been read yet.
+     *
+     * @param missingMessage the response to a multipart request without a file
+     */
+    private static void streamUpload(RoutingContext event, String missingMessage, Consumer<ReadStreamInputStream> handler) {
+        var request = event.request();
+        var contentType = request.getHeader("content-type");
+        if (contentType == null || !contentType.startsWith("multipart/form-data")) {
+            handler.accept(new ReadStreamInputStream(request, UPLOAD_BUFFERED_BYTES));
+            return;
         }
 
-        var dsServerProcess = new ProcessBuilder(
-                dsServer.getPath(),
-                dsServerBiosDir.toString(),
-                rom.toString(),
-                saveGame.toString())
-                .redirectError(ProcessBuilder.Redirect.INHERIT)
-                .start();
-
-        var dsServerReader = new DsServerOutputReader(dsServerProcess.getInputStream());
-        var portSpec = dsServerReader.readPortSpec();
-
-        var screenInputSocket = new Socket("localhost", portSpec.screenSocketPort());
-        var videoStream = screenInputSocket.getInputStream();
-
-        var audioInputSocket = new Socket("localhost", portSpec.audioSocketPort());
-        var audioStream = audioInputSocket.getInputStream();
-
-        var gameInputSocket = new Socket("localhost", portSpec.inputSocketPort());
-        var gameInputConfirmationStream = gameInputSocket.getInputStream();
-        var gameInputStream = gameInputSocket.getOutputStream();
-        var gameInputStreamMutex = new ReentrantLock();
-
-        BlockingQueue<Integer> videoPortQueue = new ArrayBlockingQueue<>(1);
-        var videoServerThread = new Thread(() -> {
-            // TODO Dual-stack socket pls
-            try (var videoSocket = new ServerSocket(0, 2, InetAddress.getByName("0.0.0.0"))) {
-                if (!videoPortQueue.offer(videoSocket.getLocalPort())) {
-                    throw new AssertionError("Queue should always have enough space!");
-                }
-                while (!stop.get()) {
-                    try {
-                        var connection = videoSocket.accept();
-                        connection.setTcpNoDelay(true);
-                        connection.setTrafficClass(0x10 /* IPTOS_LOWDELAY */);
-                        connection.setSendBufferSize(1);
-                        var outputStream = connection.getOutputStream();
-                        JpegCompressor.compress(videoStream, outputStream);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Video socket error!");
-                e.printStackTrace();
+        var uploaded = new boolean[]{false};
+        request.setExpectMultipart(true);
+        request.uploadHandler(upload -> {
+            if (uploaded[0]) {
+                // Only the first file is used
+                upload.handler(ignored -> {
+                });
+                return;
             }
+            uploaded[0] = true;
+            handler.accept(new ReadStreamInputStream(upload, UPLOAD_BUFFERED_BYTES));
         });
-        videoServerThread.setName("VideoServer");
-        videoServerThread.start();
-
-        BlockingQueue<Integer> audioPortQueue = new ArrayBlockingQueue<>(1);
-        var audioServerThread = new Thread(() -> {
-            try (var audioSocket = new ServerSocket(0, 2, InetAddress.getByName("0.0.0.0"))) {
-                if (!audioPortQueue.offer(audioSocket.getLocalPort())) {
-                    throw new AssertionError("Queue should always have enough space!");
-                }
-                byte[] audioBuffer = new byte[0x2000];
-                byte[] nextAudioFrameByteSizeBuffer = new byte[4];
-                while (!stop.get()) {
-                    try {
-                        var connection = audioSocket.accept();
-                        connection.setTcpNoDelay(true);
-                        connection.setTrafficClass(0x10 /* IPTOS_LOWDELAY */);
-                        connection.setSendBufferSize(1);
-                        var outputStream = connection.getOutputStream();
-
-                        while (!stop.get()) {
-                            audioStream.readNBytes(nextAudioFrameByteSizeBuffer, 0, 4);
-                            var nextAudioFrameByteSizeLong = (((long) nextAudioFrameByteSizeBuffer[0] & 0xFF) << 0) + (((long) nextAudioFrameByteSizeBuffer[1] & 0xFF) << 8) + (((long) nextAudioFrameByteSizeBuffer[2] & 0xFF) << 16) + (((long) nextAudioFrameByteSizeBuffer[3] & 0xFF) << 24);
-                            var nextAudioFrameByteSize = Math.toIntExact(nextAudioFrameByteSizeLong);
-                            outputStream.write(nextAudioFrameByteSizeBuffer);
-                            outputStream.flush();
-
-                            audioStream.readNBytes(audioBuffer, 0, nextAudioFrameByteSize);
-                            outputStream.write(audioBuffer, 0, nextAudioFrameByteSize);
-                            outputStream.flush();
-
-                            //  // TODO Fix readInt
-//                            var nextAudioFrameByteSize = IOUtils.readInt(audioStream);
-//                            assert nextAudioFrameByteSize <= audioBuffer.length;
-//                            audioStream.readNBytes(audioBuffer, 0, nextAudioFrameByteSize);
-//                            // TODO We could compress the buffer here
-//                            outputStream.write(audioBuffer, 0, nextAudioFrameByteSize);
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Audio write error, reconnecting...");
-                    }
-                }
+        request.endHandler(v -> {
+            if (!uploaded[0]) {
+                event.response().putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_BAD_REQUEST).end(missingMessage);
+            }
+        });
+    }
+
+    private static void loadSaveState(Vertx vertx, Session session, ReadStreamInputStream saveState, HttpServerResponse response) {
+        vertx.<Void>executeBlocking(promise -> {
+            try (saveState) {
+                session.loadSaveState(saveState);
+                promise.complete();
             } catch (IOException e) {
-                System.err.println("Could not start audio server!");
+                promise.fail(e);
+            }
+        }, false, loaded -> {
+            if (loaded.succeeded()) {
+                response.putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_OK).end();
+            } else {
+                loaded.cause().printStackTrace();
+                response.putHeader("content-type", "text/plain").setStatusCode(HttpURLConnection.HTTP_INTERNAL_ERROR).end("Could not load save state!");
             }
         });
-        audioServerThread.setName("AudioServer");
-        audioServerThread.start();
-
-        BlockingQueue<Integer> inputPortQueue = new ArrayBlockingQueue<>(1);
-        var inputServerThread = new Thread(() -> {
-            try (var inputSocket = new ServerSocket(0, 50, InetAddress.getByName("0.0.0.0"))) {
-                if (!inputPortQueue.offer(inputSocket.getLocalPort())) {
-                    throw new AssertionError("Queue should always have enough space!");
-                }
-                while (!stop.get()) {
-                    try {
-                        var connection = inputSocket.accept();
-                        // connection.setTcpNoDelay(true);
-                        // connection.setTrafficClass(0x10 /* IPTOS_LOWDELAY */);
-                        // connection.setReceiveBufferSize(1);
-                        // connection.setSendBufferSize(1);
-                        var inputStream = connection.getInputStream();
-
-                        byte[] lineBuffer = new byte[4 + 256];
-                        while (!stop.get()) {
-                            if (inputStream.readNBytes(lineBuffer, 0, 4) < 4) {
-                                throw new IOException("EOF");
-                            }
-
-                            int nextSize = (((int) lineBuffer[0]) << 24) + (((int) lineBuffer[1]) << 16) + (((int) lineBuffer[2]) << 8) + ((int) lineBuffer[3]);
-                            if (4 + nextSize > lineBuffer.length) {
-                                lineBuffer = new byte[4 + nextSize];
-                            }
-                            if (inputStream.readNBytes(lineBuffer, 4, nextSize) < nextSize) {
-                                throw new IOException("EOF");
-                            }
-
-                            gameInputStreamMutex.lock();
-                            try {
-                                gameInputStream.write(lineBuffer, 4, nextSize);
-                            } finally {
-                                gameInputStreamMutex.unlock();
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+    }
+
+    private static void hibernateIdleSessions(Map<UUID, Session> sessions, SessionStarts sessionStarts, long idleTimeoutNanos) {
+        List<Session> idleSessions;
+        var now = System.nanoTime();
+        synchronized (sessions) {
+            idleSessions = sessions.values().stream().filter(session -> session.getIdleNanos(now) > idleTimeoutNanos).collect(Collectors.toList());
+        }
+        for (Session session : idleSessions) {
+            try {
+                // Woken up in the background when a client connects again, like a session that is started
+                session.hibernate(() -> sessionStarts.submit(() -> {
+                    session.wake();
+                    return session;
+                }));
             } catch (IOException e) {
-                System.err.println("Input socket error!");
+                System.err.println("Could not hibernate session " + session.getUuid() + "!");
                 e.printStackTrace();
             }
+        }
+    }
 
-        });
-        inputServerThread.setName("InputServer");
-        inputServerThread.start();
-
-        var stopSaveWatcher = new AtomicBoolean(false);
-        BlockingQueue<Integer> saveGameNotifierPortQueue = new ArrayBlockingQueue<>(1);
-        BlockingQueue<byte[]> saveGameQueue = new LinkedBlockingQueue<>();
-        var saveGameNotifier = new Thread(() -> {
-            try (var saveGameSocket = new ServerSocket(0, 2, InetAddress.getByName("0.0.0.0"))) {
-                if (!saveGameNotifierPortQueue.offer(saveGameSocket.getLocalPort())) {
-                    throw new AssertionError("Queue should always have enough space!");
-                }
-                // Ensure all save games are copied, even on connection issues
-                byte[] lastSaveGame = null;
-                while (!stopSaveWatcher.get()) {
-                    try {
-                        var connection = saveGameSocket.accept();
-                        var outputStream = connection.getOutputStream();
-
-                        while (!stopSaveWatcher.get()) {
-                            lastSaveGame = lastSaveGame != null ? lastSaveGame : ConcurrentUtils.takeUninterruptibly(saveGameQueue);
-                            var fileSize = lastSaveGame.length;
-                            byte[] fileSizeBytes = new byte[]{
-                                    (byte) (fileSize >> 24), (byte) (fileSize >> 16), (byte) (fileSize >> 8), (byte) fileSize
-                            };
-                            outputStream.write(fileSizeBytes);
-                            outputStream.write(lastSaveGame);
-                            lastSaveGame = null;
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Save game write error, reconnecting...");
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Could not start save game server!");
+    /**
+     * @param path the path of a request below {@code /roms/nds/}
+     * @return the ID of the session, session start or upload that the request is for, or null if it is for a ROM
+     */
+    @Nullable
+    private static UUID getClusterId(String path) {
+        var segments = path.substring("/roms/nds/".length()).split("/");
+        if (segments.length >= 3 && (segments[1].equals("session") || segments[1].equals("session-starts") || segments[1].equals("uploads"))) {
+            try {
+                return UUID.fromString(segments[2]);
+            } catch (IllegalArgumentException e) {
+                return null;
             }
-        });
-        saveGameNotifier.setName("SaveGameNotifier");
-        saveGameNotifier.start();
-
-        var saveWatcher = new Thread(() -> {
-            final Path path = saveGame.getParentFile().toPath();
-            try (final WatchService watchService = FileSystems.getDefault().newWatchService(); var debouncer = new Debouncer()) {
-                final WatchKey watchKey = path.register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
-                while (!stopSaveWatcher.get()) {
-                    final WatchKey wk = watchService.take();
-                    for (WatchEvent<?> event : wk.pollEvents()) {
-                        //we only register "ENTRY_MODIFY" so the context is always a Path.
-                        final Path changed = ((Path) event.context()).toAbsolutePath();
-                        if (changed.getFileName().equals(saveGame.toPath().getFileName())) {
-                            debouncer.debounce(() -> {
-                                try {
-                                    var newSaveGameBytes = Files.readAllBytes(saveGame.toPath());
-                                    var oldSaveGameBytes = lastKnownSaveGameBytes.getAndSet(newSaveGameBytes);
-                                    if (!Arrays.equals(newSaveGameBytes, oldSaveGameBytes)) {
-                                        saveGameQueue.put(newSaveGameBytes);
-                                    }
-                                } catch (InterruptedException e) {
-                                    throw new RuntimeException(e);
-                                } catch (IOException e) {
-                                    // TODO Send proper error to client
-                                    stop.set(true);
-                                }
-                            });
-                        }
-                    }
-                    // reset the key
-                    boolean valid = wk.reset();
-                    if (!valid) {
-                        System.out.println("Key has been unregistered");
-                    }
-                }
-                watchKey.cancel();
-            } catch (IOException e) {
-                // TODO Send proper error to client
-                stop.set(true);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    private static String getRomMd5(String path) {
+        return path.substring("/roms/nds/".length()).split("/")[0];
+    }
+
+    /**
+     * Redirected rather than proxied, so large uploads and video don't pass through two instances.
+     */
+    private static void redirectToMember(RoutingContext event, String member) {
+        var uri = event.request().uri();
+        var location = member + uri + (uri.contains("?") ? "&" : "?") + ROUTED_PARAM + "=1";
+        event.response().putHeader("location", location).setStatusCode(HTTP_TEMPORARY_REDIRECT).end();
+    }
+
+    /**
+     * Copies the ROM from the instance of the cluster that owns it into {@code romStore}.
+     */
+    private static RomStore.Rom replicateRom(HttpClient client, RomStore romStore, String owner, String md5) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(URI.create(owner + "/roms/nds/" + md5 + "?" + ROUTED_PARAM + "=1")).build();
+        var response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (var body = response.body()) {
+            if (response.statusCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Could not fetch ROM " + md5 + " from " + owner + ", got " + response.statusCode());
             }
-        });
-        saveWatcher.setName("SaveWatcher");
-        saveWatcher.start();
+            var actualMd5 = romStore.ingest(md5, body);
+            if (!actualMd5.equals(md5)) {
+                throw new IOException("ROM " + md5 + " from " + owner + " has MD5 " + actualMd5);
+            }
+        }
+        return Objects.requireNonNull(romStore.get(md5));
+    }
 
-        var processes = List.of(dsServerProcess);
+    private static Session createNewSession(Vertx vertx,
+                                            EmulatorLauncher launcher,
+                                            UUID sessionId,
+                                            File rom,
+                                            @Nullable File initialSaveGame,
+                                            MetricsRegistry metricsRegistry,
+                                            LogSink logSink) throws IOException, InterruptedException {
+        var sessionDir = Files.createTempDirectory("emuserver-" + sessionId);
+        var saveGame = new File(sessionDir.toFile(), rom.getName() + ".dsv");
+        var stop = new AtomicBoolean(false);
+
+        var saveGameFile = new SaveGameFile(saveGame.toPath(), initialSaveGame != null ? Files.readAllBytes(initialSaveGame.toPath()) : new byte[0]);
+
+        if (initialSaveGame != null && !IOUtils.moveOrCopy(initialSaveGame, saveGame)) {
+            throw new IOException("Could not import initial savegame!");
+        }
+
+        var metrics = new SessionMetrics(metricsRegistry, sessionId);
+        var log = new SessionLog(logSink, sessionId, Config.LOG_SESSION_LINES);
+        var cookies = new DatagramCookies(sessionId);
+        Emulator emulator;
+        try {
+            emulator = launcher.launch(rom, saveGame, saveGameFile, metrics, log, cookies, SessionVerticle.Ports.ANY, stop);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            metrics.close();
+            throw e;
+        }
 
         return new Session(sessionId,
                 stop,
-                stopSaveWatcher,
                 sessionDir.toFile(),
+                rom,
                 saveGame,
-                processes,
-                ConcurrentUtils.takeUninterruptibly(videoPortQueue),
-                ConcurrentUtils.takeUninterruptibly(audioPortQueue),
-                ConcurrentUtils.takeUninterruptibly(inputPortQueue),
-                ConcurrentUtils.takeUninterruptibly(saveGameNotifierPortQueue),
-                lastKnownSaveGameBytes,
-                gameInputStream,
-                gameInputStreamMutex,
-                gameInputConfirmationStream);
+                vertx,
+                launcher,
+                saveGameFile,
+                metrics,
+                log,
+                cookies,
+                emulator);
     }
 
 }
@@ -0,0 +1,337 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.http.WebSocketFrame;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Carries the video, audio, input and save game sockets of a session over one WebSocket, so a client needs a single
+ * connection to the HTTP port instead of one per socket. Each binary message starts with the byte of its
+ * {@link Channel}, followed by what would have been sent on the socket of the channel. An empty message closes the
+ * channel, from either side, and the WebSocket is closed along with the last channel.
+ * <p>
+ * The server of each socket gets a {@link ClientConnection} per channel. Messages wait in a queue per channel and the queue
+ * of the channel with the highest priority is written first, so input and audio don't wait behind video. At most
+ * {@code windowBytes} are handed to the WebSocket at a time, since what has been handed over can't be overtaken
+ * anymore.
+ * <p>
+ * Everything but the WebSocket's own callbacks happens on the context of the session.
+ */
+final class MultiplexedConnection {
+
+    /**
+     * The channels in order of their priority.
+     */
+    enum Channel {
+        INPUT(0), AUDIO(1), VIDEO(2), SAVE_GAME(3);
+
+        private final int id;
+
+        Channel(int id) {
+            this.id = id;
+        }
+
+        /**
+         * @param names names of channels as in {@code video,audio}, case-insensitive
+         */
+        static Set<Channel> parse(String names) {
+            var channels = EnumSet.noneOf(Channel.class);
+            for (String name : names.split(",")) {
+                channels.add(valueOf(name.trim().toUpperCase()));
+            }
+            return channels;
+        }
+    }
+
+    private record Pending(Buffer data, @Nullable Handler<AsyncResult<Void>> handler) {
+    }
+
+    private final Context context;
+    private final ServerWebSocket webSocket;
+    private final int windowBytes;
+    private final ChannelSocket[] sockets = new ChannelSocket[Channel.values().length];
+    private long inFlightBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * Must be called on the context of the WebSocket, before it received anything.
+     *
+     * @param context the context of the session
+     */
+    MultiplexedConnection(Context context, ServerWebSocket webSocket, int windowBytes) {
+        this.context = context;
+        this.webSocket = webSocket;
+        this.windowBytes = windowBytes;
+        webSocket.binaryMessageHandler(message -> onContext(v -> onMessage(message)));
+        webSocket.exceptionHandler(Throwable::printStackTrace);
+        webSocket.closeHandler(v -> onContext(closed -> closeAll()));
+    }
+
+    /**
+     * @return the socket of the channel, to be passed to the server of the channel
+     */
+    ClientConnection open(Channel channel) {
+        var socket = new ChannelSocket(channel);
+        sockets[channel.id] = socket;
+        if (closed) {
+            socket.onClosed();
+        }
+        return socket;
+    }
+
+    private void onContext(Handler<Void> action) {
+        if (Vertx.currentContext() == context) {
+            action.handle(null);
+        } else {
+            context.runOnContext(action);
+        }
+    }
+
+    private void onMessage(Buffer message) {
+        if (message.length() == 0) {
+            return;
+        }
+        var id = message.getUnsignedByte(0);
+        var socket = id < sockets.length ? sockets[id] : null;
+        if (socket == null) {
+            return;
+        }
+        if (message.length() == 1) {
+            socket.close();
+        } else {
+            // Sliced, not copied
+            socket.receive(message.slice(1, message.length()));
+        }
+    }
+
+    /**
+     * Hands the queued messages to the WebSocket, highest priority first, as long as the window allows it.
+     */
+    private void pump() {
+        while (!closed) {
+            ChannelSocket next = null;
+            for (ChannelSocket socket : sockets) {
+                if (socket != null && !socket.queue.isEmpty()) {
+                    next = socket;
+                    break;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            var pending = next.queue.peekFirst();
+            var size = 1 + pending.data().length();
+            if (inFlightBytes > 0 && inFlightBytes + size > windowBytes) {
+                return;
+            }
+
+            next.queue.pollFirst();
+            next.queuedBytes -= pending.data().length();
+            inFlightBytes += size;
+            // The channel byte is put in front of the data without copying it
+            var header = Unpooled.wrappedBuffer(new byte[]{(byte) next.channel.id});
+            var frame = Buffer.buffer(Unpooled.wrappedBuffer(header, pending.data().getByteBuf()));
+            try {
+                webSocket.writeFrame(WebSocketFrame.binaryFrame(frame, true), written -> onContext(v -> {
+                    inFlightBytes -= size;
+                    if (pending.handler() != null) {
+                        pending.handler().handle(written);
+                    }
+                    if (written.failed()) {
+                        webSocket.close();
+                        closeAll();
+                    } else {
+                        pump();
+                    }
+                }));
+            } catch (IllegalStateException e) {
+                // Closed in the meantime, which the close handler is going to tell the session about
+                inFlightBytes -= size;
+                if (pending.handler() != null) {
+                    pending.handler().handle(Future.failedFuture(e));
+                }
+                return;
+            }
+            next.onDequeued();
+        }
+    }
+
+    private void closeAll() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (ChannelSocket socket : sockets) {
+            if (socket != null) {
+                socket.onClosed();
+            }
+        }
+    }
+
+    private void onChannelClosed() {
+        for (ChannelSocket socket : sockets) {
+            if (socket != null && !socket.closed) {
+                return;
+            }
+        }
+        webSocket.close();
+        closeAll();
+    }
+
+    /**
+     * One channel, as if it were a socket of its own. Must only be used on the context of the session.
+     */
+    private final class ChannelSocket implements ClientConnection {
+        final Channel channel;
+        final Deque<Pending> queue = new ArrayDeque<>();
+        private final Deque<Buffer> received = new ArrayDeque<>();
+        long queuedBytes = 0;
+        boolean closed = false;
+        private final int maxQueuedBytes = windowBytes;
+        private long demand = Long.MAX_VALUE;
+        private boolean full = false;
+        @Nullable
+        private Handler<Buffer> handler;
+        @Nullable
+        private Handler<Void> closeHandler;
+        @Nullable
+        private Handler<Void> drainHandler;
+
+        ChannelSocket(Channel channel) {
+            this.channel = channel;
+        }
+
+        void receive(Buffer data) {
+            if (closed) {
+                return;
+            }
+            if (demand > 0 && received.isEmpty()) {
+                deliver(data);
+            } else {
+                received.addLast(data);
+            }
+        }
+
+        private void deliver(Buffer data) {
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            if (handler != null) {
+                handler.handle(data);
+            }
+        }
+
+        void onDequeued() {
+            if (full && queuedBytes <= maxQueuedBytes / 2) {
+                full = false;
+                if (drainHandler != null) {
+                    drainHandler.handle(null);
+                }
+            }
+        }
+
+        void onClosed() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            received.clear();
+            var dropped = new ArrayDeque<>(queue);
+            queue.clear();
+            queuedBytes = 0;
+            for (Pending pending : dropped) {
+                if (pending.handler() != null) {
+                    pending.handler().handle(Future.failedFuture(new IOException("Channel " + channel + " has been closed!")));
+                }
+            }
+            if (closeHandler != null) {
+                closeHandler.handle(null);
+            }
+        }
+
+        @Override
+        public void write(Buffer data, @Nullable Handler<AsyncResult<Void>> handler) {
+            if (closed) {
+                if (handler != null) {
+                    handler.handle(Future.failedFuture(new IOException("Channel " + channel + " has been closed!")));
+                }
+                return;
+            }
+            queue.addLast(new Pending(data, handler));
+            queuedBytes += data.length();
+            if (queuedBytes >= maxQueuedBytes) {
+                full = true;
+            }
+            pump();
+        }
+
+        @Override
+        public void write(Buffer data) {
+            write(data, null);
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            return queuedBytes >= maxQueuedBytes;
+        }
+
+        @Override
+        public void drainHandler(@Nullable Handler<Void> handler) {
+            drainHandler = handler;
+        }
+
+        @Override
+        public void handler(@Nullable Handler<Buffer> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void exceptionHandler(@Nullable Handler<Throwable> handler) {
+            // Errors of the WebSocket concern all channels and are logged there
+        }
+
+        @Override
+        public void closeHandler(@Nullable Handler<Void> handler) {
+            closeHandler = handler;
+        }
+
+        @Override
+        public void pause() {
+            demand = 0;
+        }
+
+        @Override
+        public void fetch(long amount) {
+            demand = amount == Long.MAX_VALUE || demand + amount < 0 ? Long.MAX_VALUE : demand + amount;
+            while (demand > 0 && !received.isEmpty()) {
+                deliver(received.pollFirst());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            onClosed();
+            // Tells the client, unless the whole WebSocket is closed anyway
+            queue.addLast(new Pending(Buffer.buffer(), null));
+            pump();
+            onChannelClosed();
+        }
+    }
+}
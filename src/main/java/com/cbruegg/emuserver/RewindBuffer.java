@@ -0,0 +1,115 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.utils.BinaryDelta;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded history of the save states of one session. Only the newest state is kept as it is. Each older one is kept
+ * as a {@link BinaryDelta} from the state that followed it, so the oldest state can be dropped without touching
+ * the others. Once the states take more than the budget, the oldest ones are dropped.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class RewindBuffer {
+
+    /**
+     * @param seconds how far back the oldest state goes
+     */
+    record Stats(int states, long bytes, double seconds) {
+    }
+
+    /**
+     * @param ageNanos how long ago the state has been captured
+     */
+    record Restored(byte[] state, long ageNanos) {
+    }
+
+    private record Delta(byte[] delta, long capturedNanos) {
+    }
+
+    private final long maxBytes;
+    // Newest first
+    private final Deque<Delta> deltas = new ArrayDeque<>();
+    @Nullable
+    private byte[] newest;
+    private long newestCapturedNanos;
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes budget of all states together. The newest state is always kept, even if it exceeds the budget.
+     */
+    RewindBuffer(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void add(byte[] state, long capturedNanos) {
+        if (newest != null) {
+            var delta = new Delta(BinaryDelta.encode(state, newest), newestCapturedNanos);
+            deltas.addFirst(delta);
+            bytes += delta.delta().length - newest.length;
+        }
+        newest = state;
+        newestCapturedNanos = capturedNanos;
+        bytes += state.length;
+        while (bytes > maxBytes && !deltas.isEmpty()) {
+            bytes -= deltas.removeLast().delta().length;
+        }
+    }
+
+    /**
+     * Goes back to the newest state that is at least {@code nanosBack} old, or the oldest one there is. Newer states
+     * are dropped, and the timestamps of older ones are moved forward, so the game time between them is preserved.
+     *
+     * @return the state, or null if there is none yet
+     */
+    @Nullable
+    synchronized Restored rewind(long nanosBack, long now) throws IOException {
+        if (newest == null) {
+            return null;
+        }
+
+        var target = now - nanosBack;
+        var state = newest;
+        var capturedNanos = newestCapturedNanos;
+        while (capturedNanos > target && !deltas.isEmpty()) {
+            var delta = deltas.removeFirst();
+            bytes -= delta.delta().length;
+            state = BinaryDelta.apply(state, delta.delta());
+            capturedNanos = delta.capturedNanos();
+        }
+
+        var shift = now - capturedNanos;
+        var shifted = new ArrayDeque<Delta>(deltas.size());
+        for (Delta delta : deltas) {
+            shifted.add(new Delta(delta.delta(), delta.capturedNanos() + shift));
+        }
+        deltas.clear();
+        deltas.addAll(shifted);
+        bytes += state.length - newest.length;
+        newest = state;
+        newestCapturedNanos = now;
+        return new Restored(state, shift);
+    }
+
+    /**
+     * Drops all states, e.g. to free their memory.
+     */
+    synchronized void clear() {
+        deltas.clear();
+        newest = null;
+        bytes = 0;
+    }
+
+    synchronized Stats getStats(long now) {
+        if (newest == null) {
+            return new Stats(0, 0, 0);
+        }
+        var oldest = deltas.isEmpty() ? newestCapturedNanos : deltas.getLast().capturedNanos();
+        return new Stats(deltas.size() + 1, bytes, (now - oldest) / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}
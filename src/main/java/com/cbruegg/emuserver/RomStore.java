@@ -0,0 +1,201 @@
+package com.cbruegg.emuserver;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * ROMs of one platform, stored under their MD5. Which ROMs exist is known from an index that is built once on startup,
+ * so looking up a ROM doesn't touch the disk. Uploads are hashed while they are written, and moved to their final
+ * name once their hash has been verified. Large ROMs can also be uploaded in chunks that can be retried one by one.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class RomStore {
+
+    record Rom(String md5, long size, Path path) {
+    }
+
+    private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 0x10000;
+    // Twice the largest DS cartridge
+    private static final long MAX_ROM_SIZE = 1L << 30;
+
+    private final Path dir;
+    private final String extension;
+    private final Map<String, Rom> index = new ConcurrentHashMap<>();
+    private final Map<UUID, ChunkedRomUpload> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Indexes the ROMs in {@code dir} and deletes uploads that have been interrupted.
+     *
+     * @param extension of the ROM files, e.g. {@code .nds}
+     */
+    RomStore(Path dir, String extension) throws IOException {
+        this.dir = dir;
+        this.extension = extension;
+        try (var files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                var name = file.getFileName().toString();
+                if (name.endsWith(PARTIAL_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                if (!name.endsWith(extension)) {
+                    continue;
+                }
+                var md5 = name.substring(0, name.length() - extension.length());
+                if (isValidMd5(md5)) {
+                    index.put(md5, new Rom(md5, Files.size(file), file));
+                }
+            }
+        }
+    }
+
+    static boolean isValidMd5(String md5) {
+        return MD5.matcher(md5).matches();
+    }
+
+    @Nullable
+    Rom get(String md5) {
+        return index.get(md5);
+    }
+
+    /**
+     * Stores the ROM read from {@code in} if its MD5 is {@code expectedMd5}. The ROM is read and written only once.
+     *
+     * @return the actual MD5 of the ROM, which is only stored if it is the expected one
+     */
+    String ingest(String expectedMd5, InputStream in) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        var partialFile = Files.createTempFile(dir, expectedMd5, PARTIAL_SUFFIX);
+        try {
+            long size = 0;
+            try (var channel = FileChannel.open(partialFile, StandardOpenOption.WRITE)) {
+                var buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    md.update(buffer, 0, read);
+                    var written = ByteBuffer.wrap(buffer, 0, read);
+                    while (written.hasRemaining()) {
+                        channel.write(written);
+                    }
+                    size += read;
+                }
+            }
+
+            var actualMd5 = toHex(md.digest());
+            if (actualMd5.equals(expectedMd5)) {
+                add(actualMd5, size, partialFile);
+            }
+            return actualMd5;
+        } finally {
+            Files.deleteIfExists(partialFile);
+        }
+    }
+
+    /**
+     * Starts an upload of a ROM in chunks, see {@link ChunkedRomUpload}.
+     *
+     * @param id a new random ID of the upload
+     */
+    ChunkedRomUpload createUpload(UUID id, String md5, long size, int chunkSize) throws IOException {
+        if (size <= 0 || size > MAX_ROM_SIZE) {
+            throw new IllegalArgumentException("ROM size must be between 1 and " + MAX_ROM_SIZE + " bytes!");
+        }
+        var upload = new ChunkedRomUpload(id, md5, size, chunkSize, dir.resolve(md5 + "-" + id + PARTIAL_SUFFIX));
+        uploads.put(id, upload);
+        return upload;
+    }
+
+    @Nullable
+    ChunkedRomUpload getUpload(UUID id) {
+        return uploads.get(id);
+    }
+
+    /**
+     * Stores the ROM of the upload if all of its chunks have been received and it has the expected MD5.
+     * Otherwise, the upload is dropped, unless chunks are missing. Completing an upload again, e.g. when a client
+     * retries, gives the same MD5 as the first time.
+     *
+     * @return the actual MD5 of the ROM
+     * @throws IllegalStateException if chunks are missing
+     */
+    String completeUpload(ChunkedRomUpload upload) throws IOException {
+        synchronized (upload) {
+            var completedBefore = upload.isCompleted();
+            String actualMd5;
+            try {
+                actualMd5 = toHex(upload.complete());
+            } catch (IOException e) {
+                cancelUpload(upload);
+                throw e;
+            }
+            if (completedBefore) {
+                return actualMd5;
+            }
+
+            uploads.remove(upload.getId());
+            upload.close();
+            try {
+                if (actualMd5.equals(upload.getMd5())) {
+                    add(actualMd5, upload.getSize(), upload.getFile());
+                }
+            } finally {
+                Files.deleteIfExists(upload.getFile());
+            }
+            return actualMd5;
+        }
+    }
+
+    void cancelUpload(ChunkedRomUpload upload) throws IOException {
+        uploads.remove(upload.getId());
+        upload.delete();
+    }
+
+    /**
+     * Cancels uploads that haven't received anything for {@code maxIdleNanos}.
+     */
+    void expireUploads(long maxIdleNanos) {
+        var now = System.nanoTime();
+        for (ChunkedRomUpload upload : uploads.values()) {
+            if (now - upload.getLastActivityNanos() > maxIdleNanos) {
+                try {
+                    cancelUpload(upload);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void add(String md5, long size, Path verifiedFile) throws IOException {
+        var romFile = dir.resolve(md5 + extension);
+        Files.move(verifiedFile, romFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        index.put(md5, new Rom(md5, size, romFile));
+    }
+
+    private static String toHex(byte[] digest) {
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+}
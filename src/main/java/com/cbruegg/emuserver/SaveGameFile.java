@@ -0,0 +1,195 @@
+package com.cbruegg.emuserver;
+
+import io.vertx.core.buffer.Buffer;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The latest version of the save game of a session, from which the messages of the {@link SaveGameProtocol}s are
+ * created. The file is read with positional reads into a reused buffer and compared to the previous version by the
+ * hashes of its blocks, so only changed blocks are copied into the latest version.
+ * <p>
+ * Only one thread may read the file at a time, everything else may be called from any thread.
+ */
+final class SaveGameFile {
+
+    /**
+     * @param version     the version of the save game the message brings the client to
+     * @param blockHashes the hashes of the blocks of that version, to create the next delta from
+     */
+    record Message(Buffer data, long version, int length, long[] blockHashes) {
+    }
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final byte KIND_FULL = 0;
+    private static final byte KIND_DELTA = 1;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Path path;
+    // Only used by the thread reading the file
+    private ByteBuffer readBuffer = ByteBuffer.allocate(0);
+    // The rest is guarded by this
+    private byte[] content = new byte[0];
+    private int length = 0;
+    private long[] blockHashes = new long[0];
+    private int checksum = 0;
+    private long version = 0;
+
+    SaveGameFile(Path path, byte[] initialContent) {
+        this.path = path;
+        update(initialContent, initialContent.length);
+        // The client has the initial save game already
+        version = 0;
+    }
+
+    /**
+     * Reads the file.
+     *
+     * @return whether it changed since it has last been read or replaced
+     */
+    boolean refresh() throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Save game is too large: " + size);
+            }
+            if (readBuffer.capacity() < size) {
+                readBuffer = ByteBuffer.allocate((int) size);
+            }
+            readBuffer.clear().limit((int) size);
+            // The file may be truncated while it is read, then its new end is taken as it is
+            while (readBuffer.hasRemaining()) {
+                if (channel.read(readBuffer, readBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            readBuffer.flip();
+        }
+        return update(readBuffer.array(), readBuffer.limit());
+    }
+
+    /**
+     * Replaces the save game without reading the file, e.g. with the one that is about to be written to it.
+     *
+     * @return the version of the save game afterwards
+     */
+    long replace(byte[] newContent) {
+        update(newContent, newContent.length);
+        return getVersion();
+    }
+
+    private boolean update(byte[] newContent, int newLength) {
+        // Hashed before locking, so creating messages isn't held up
+        var newBlockHashes = hashBlocks(newContent, newLength);
+        var crc = new CRC32C();
+        crc.update(newContent, 0, newLength);
+        var newChecksum = (int) crc.getValue();
+
+        synchronized (this) {
+            if (newLength == length && newChecksum == checksum && Arrays.equals(newBlockHashes, blockHashes)) {
+                return false;
+            }
+            if (content.length < newLength) {
+                content = Arrays.copyOf(content, newLength);
+            }
+            for (int block = 0; block < newBlockHashes.length; block++) {
+                if (block >= blockHashes.length || newBlockHashes[block] != blockHashes[block]) {
+                    var offset = block * BLOCK_SIZE;
+                    System.arraycopy(newContent, offset, content, offset, Math.min(BLOCK_SIZE, newLength - offset));
+                }
+            }
+            length = newLength;
+            blockHashes = newBlockHashes;
+            checksum = newChecksum;
+            version++;
+            return true;
+        }
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param baseBlockHashes the hashes of the blocks the client has, or null if it has nothing or speaks
+     *                        {@link SaveGameProtocol#FULL}
+     */
+    synchronized Message createMessage(SaveGameProtocol protocol, @Nullable long[] baseBlockHashes, int baseLength) {
+        Buffer data;
+        if (protocol == SaveGameProtocol.FULL) {
+            data = Buffer.buffer(4 + length).appendInt(length).appendBytes(content, 0, length);
+        } else if (baseBlockHashes == null) {
+            data = Buffer.buffer(13 + length)
+                    .appendInt(9 + length)
+                    .appendByte(KIND_FULL)
+                    .appendInt(length)
+                    .appendInt(checksum)
+                    .appendBytes(content, 0, length);
+        } else {
+            data = createDelta(baseBlockHashes, baseLength);
+        }
+        return new Message(data, version, length, blockHashes);
+    }
+
+    private Buffer createDelta(long[] baseBlockHashes, int baseLength) {
+        var data = Buffer.buffer()
+                .appendInt(0)
+                .appendByte(KIND_DELTA)
+                .appendInt(length)
+                .appendInt(checksum)
+                .appendInt(0);
+        var ranges = 0;
+        var block = 0;
+        while (block < blockHashes.length) {
+            if (!isChanged(block, baseBlockHashes, baseLength)) {
+                block++;
+                continue;
+            }
+            var start = block;
+            while (block < blockHashes.length && isChanged(block, baseBlockHashes, baseLength)) {
+                block++;
+            }
+            var offset = start * BLOCK_SIZE;
+            var rangeLength = Math.min(block * BLOCK_SIZE, length) - offset;
+            data.appendInt(offset).appendInt(rangeLength).appendBytes(content, offset, rangeLength);
+            ranges++;
+        }
+        return data.setInt(0, data.length() - 4).setInt(13, ranges);
+    }
+
+    private boolean isChanged(int block, long[] baseBlockHashes, int baseLength) {
+        // A block that got longer or shorter may hash the same if its end is zeroes
+        var blockEnd = (block + 1) * BLOCK_SIZE;
+        return block >= baseBlockHashes.length
+                || baseBlockHashes[block] != blockHashes[block]
+                || (blockEnd > length || blockEnd > baseLength) && length != baseLength;
+    }
+
+    private static long[] hashBlocks(byte[] content, int length) {
+        var hashes = new long[(length + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        var longs = ByteBuffer.wrap(content, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        for (int block = 0; block < hashes.length; block++) {
+            var offset = block * BLOCK_SIZE;
+            var end = Math.min(offset + BLOCK_SIZE, length);
+            var hash = FNV_OFFSET_BASIS;
+            var i = offset;
+            for (; i + Long.BYTES <= end; i += Long.BYTES) {
+                hash = (hash ^ longs.getLong(i)) * FNV_PRIME;
+            }
+            for (; i < end; i++) {
+                hash = (hash ^ content[i]) * FNV_PRIME;
+            }
+            hashes[block] = hash;
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,108 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.vertx.core.Context;
+
+import javax.annotation.Nullable;
+
+/**
+ * Sends the latest version of the save game to the most recently connected client whenever it changed, in the
+ * {@link SaveGameProtocol} the client negotiated. Changes that happen while a save game is being written are coalesced
+ * into the next message. A change that could not be written is sent to the next client that connects.
+ */
+final class SaveGameNotifier {
+
+    private final Context context;
+    private final SaveGameFile saveGameFile;
+    private final SessionMetrics metrics;
+    @Nullable
+    private ClientConnection client;
+    private SaveGameProtocol protocol = SaveGameProtocol.FULL;
+    // What the client has, or null if its deltas need a full save game first
+    @Nullable
+    private long[] clientBlockHashes;
+    private int clientLength;
+    // The newest version any client received or uploaded itself
+    private long deliveredVersion = 0;
+    private long uploadedVersion = 0;
+    private boolean writing = false;
+
+    SaveGameNotifier(Context context, SaveGameFile saveGameFile, SessionMetrics metrics) {
+        this.context = context;
+        this.saveGameFile = saveGameFile;
+        this.metrics = metrics;
+    }
+
+    void onClient(ClientConnection connection) {
+        SaveGameProtocol.negotiate(context.owner(), connection, negotiated -> {
+            if (negotiated.failed()) {
+                negotiated.cause().printStackTrace();
+                connection.close();
+                return;
+            }
+
+            if (client != null) {
+                client.close();
+            }
+            client = connection;
+            protocol = negotiated.result();
+            clientBlockHashes = null;
+            connection.handler(ignored -> {
+            });
+            connection.closeHandler(v -> {
+                if (client == connection) {
+                    client = null;
+                }
+            });
+            flush();
+        });
+    }
+
+    /**
+     * The save game file has changed. May be called from any thread.
+     */
+    void onChanged() {
+        context.runOnContext(v -> flush());
+    }
+
+    /**
+     * The save game has been replaced by one that the client uploaded, so it doesn't need to get it back.
+     * May be called from any thread.
+     */
+    void onUploaded(long version) {
+        context.runOnContext(v -> {
+            deliveredVersion = Math.max(deliveredVersion, version);
+            uploadedVersion = Math.max(uploadedVersion, version);
+            // The client's copy is the upload now, which deltas can't be based on
+            clientBlockHashes = null;
+        });
+    }
+
+    private void flush() {
+        var connection = client;
+        if (connection == null || writing || saveGameFile.getVersion() <= deliveredVersion) {
+            return;
+        }
+
+        var message = saveGameFile.createMessage(protocol, clientBlockHashes, clientLength);
+        writing = true;
+        connection.write(message.data(), written -> {
+            writing = false;
+            if (written.failed()) {
+                // Ensure all save games are copied, even on connection issues
+                System.err.println("Save game write error, reconnecting...");
+                connection.close();
+            } else {
+                metrics.onBytesSent(SessionMetrics.Socket.SAVE_GAME, message.data().length());
+                metrics.onSaveGameSent();
+                deliveredVersion = Math.max(deliveredVersion, message.version());
+                if (client == connection && message.version() > uploadedVersion) {
+                    clientBlockHashes = message.blockHashes();
+                    clientLength = message.length();
+                }
+            }
+            flush();
+        });
+    }
+}
@@ -0,0 +1,60 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.utils.ClientConnection;
+import com.cbruegg.emuserver.utils.Handshake;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire formats of the save game socket, negotiated through a {@link Handshake} with the magic {@code EMUG}.
+ */
+enum SaveGameProtocol {
+    /**
+     * Each changed save game as a whole, prefixed with its size as a big-endian int32. Spoken to clients that don't
+     * send a hello.
+     */
+    FULL(1),
+    /**
+     * Messages prefixed with their size as a big-endian int32, starting with a kind byte, the size of the save game
+     * and the CRC32C of the whole save game, both as big-endian int32. The first message after connecting is a full
+     * one (kind 0) with the save game as the rest. Later ones are deltas (kind 1) with the number of changed ranges,
+     * followed by each range's offset, length and bytes, relative to the save game of the previous message.
+     */
+    BLOCK_DELTA(2);
+
+    private static final byte[] MAGIC = "EMUG".getBytes(StandardCharsets.US_ASCII);
+
+    private final int version;
+
+    SaveGameProtocol(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Determines the protocol to speak on a freshly accepted connection. Unknown versions fall back to {@link #FULL}.
+     */
+    static void negotiate(Vertx vertx, ClientConnection connection, Handler<AsyncResult<SaveGameProtocol>> handler) {
+        Handshake.readClientVersion(vertx, connection, MAGIC, hello -> {
+            if (hello.failed()) {
+                handler.handle(Future.failedFuture(hello.cause()));
+                return;
+            }
+
+            var requestedVersion = hello.result().version();
+            var protocol = FULL;
+            for (SaveGameProtocol candidate : values()) {
+                if (candidate.version == requestedVersion) {
+                    protocol = candidate;
+                }
+            }
+            if (requestedVersion != Handshake.NO_HELLO) {
+                Handshake.writeServerVersion(connection, MAGIC, protocol.version);
+            }
+            handler.handle(Future.succeededFuture(protocol));
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.utils.Debouncer;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Watches the save games of all sessions with a single watch service and thread. Modifications of each save game are
+ * debounced on a shared scheduler, which also runs the listeners.
+ */
+final class SaveGameWatcher implements AutoCloseable {
+
+    final class Registration implements AutoCloseable {
+        private final WatchKey key;
+        private final Path fileName;
+        private final Runnable onChanged;
+
+        private Registration(WatchKey key, Path fileName, Runnable onChanged) {
+            this.key = key;
+            this.fileName = fileName;
+            this.onChanged = onChanged;
+        }
+
+        /**
+         * Stops watching the save game. A change that is pending already may still be reported.
+         */
+        @Override
+        public void close() {
+            registrations.remove(key);
+            key.cancel();
+            debouncer.cancel(this);
+        }
+    }
+
+    private final WatchService watchService;
+    private final ScheduledExecutorService scheduler;
+    private final Debouncer<Registration> debouncer;
+    private final Map<WatchKey, Registration> registrations = new ConcurrentHashMap<>();
+
+    /**
+     * @param debounceMs how long a save game must stay unmodified before its listener is called
+     * @param threads    number of threads the listeners are called on
+     */
+    SaveGameWatcher(long debounceMs, int threads) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        scheduler = Executors.newScheduledThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("SaveGameDebouncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        debouncer = new Debouncer<>(scheduler, debounceMs);
+        Thread thread = new Thread(this::run);
+        thread.setName("SaveWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Calls {@code onChanged} on a scheduler thread once {@code saveGame} has been modified and then left alone for
+     * the debounce duration. Each save game must be in a directory of its own.
+     */
+    Registration register(Path saveGame, Runnable onChanged) throws IOException {
+        var key = saveGame.getParent().register(watchService, StandardWatchEventKinds.ENTRY_MODIFY);
+        var registration = new Registration(key, saveGame.getFileName(), onChanged);
+        registrations.put(key, registration);
+        return registration;
+    }
+
+    private void run() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                var key = watchService.take();
+                var registration = registrations.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (registration == null) {
+                        continue;
+                    }
+                    // Overflows lose the file names, so they might have been the save game
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || registration.fileName.equals(event.context())) {
+                        debouncer.debounce(registration, registration.onChanged);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed
+        } catch (InterruptedException e) {
+            System.err.println("Save watcher has been interrupted!");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        scheduler.shutdownNow();
+    }
+}
@@ -1,7 +1,20 @@
 package com.cbruegg.emuserver;
 
 import com.cbruegg.emuserver.command.Command;
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.LatencyTracer;
+import com.cbruegg.emuserver.platform.ds.VideoBroadcaster;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,68 +22,119 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+/**
+ * A session of a ROM, which keeps its UUID, save game and ports while it hibernates. A hibernating session has no
+ * melonDS process, only its state on disk, and is woken up by API calls that need melonDS or by clients that
+ * connect to its video, audio or input port.
+ */
 class Session {
-    record Public(UUID uuid, int videoPort, int audioPort, int inputPort, int saveGameNotifierPort) {
+    /**
+     * @param datagramPort the UDP port of the {@link DatagramServer}, or 0 without one
+     */
+    record Public(UUID uuid, int videoPort, int audioPort, int inputPort, int saveGameNotifierPort, int datagramPort) {
     }
 
+    /**
+     * @param audio null while the session hibernates
+     */
+    record Stats(List<VideoBroadcaster.ViewerStats> videoViewers,
+                 @Nullable AudioServer.Stats audio,
+                 List<DatagramServer.ClientStats> datagramClients,
+                 RewindBuffer.Stats rewind) {
+    }
+
+    private static final int SAVE_STATE_BUFFER_SIZE = 0x10000;
+    private static final String HIBERNATION_STATE_FILE = "hibernation.state";
+    private static final String REWIND_STATE_FILE = "rewind.state";
+
     private final UUID uuid;
     private final AtomicBoolean stop;
-    private final AtomicBoolean stopSaveWatcher;
     private final File dir;
+    private final File rom;
     private final File saveGame;
-    private final List<Process> processes;
-    private final int videoPort;
-    private final int audioPort;
-    private final int inputPort;
-    private final int saveGameNotifierPort;
-    private final AtomicReference<byte[]> lastKnownSaveGameRef;
-    private final OutputStream gameInputStream;
-    private final Lock gameInputStreamMutex;
-    private final InputStream gameInputConfirmationStream;
+    private final Vertx vertx;
+    private final EmulatorLauncher launcher;
+    private final SaveGameFile saveGameFile;
+    private final SessionMetrics metrics;
+    private final SessionLog log;
+    private final DatagramCookies cookies;
+    private final RewindBuffer rewindBuffer = new RewindBuffer(Config.REWIND_MAX_BYTES);
+    // Keeps captures from interleaving with rewinds and hibernation. Taken before the lifecycle lock.
+    private final ReentrantLock rewindLock = new ReentrantLock();
+    private final AtomicBoolean capturingRewindState = new AtomicBoolean(false);
+    private volatile long rewindTimerId = -1;
+    @Nullable
+    private volatile WorkerExecutor rewindExecutor;
+    private volatile long rewindIntervalMillis;
+    // Guards hibernating and waking up, along with the wake servers
+    private final Object lifecycleLock = new Object();
+    // Null while hibernating
+    @Nullable
+    private volatile Emulator emulator;
+    private volatile SessionVerticle.Ports ports;
+    private final List<NetServer> wakeServers = new ArrayList<>();
+    private final List<DatagramSocket> wakeDatagramSockets = new ArrayList<>();
+    @Nullable
+    private Runnable onWakeRequested;
+    private volatile long lastActivityNanos = System.nanoTime();
 
     public Session(UUID uuid,
                    AtomicBoolean stop,
-                   AtomicBoolean stopSaveWatcher,
                    File dir,
+                   File rom,
                    File saveGame,
-                   List<Process> processes,
-                   int videoPort,
-                   int audioPort,
-                   int inputPort,
-                   int saveGameNotifierPort,
-                   AtomicReference<byte[]> lastKnownSaveGameRef,
-                   OutputStream gameInputStream,
-                   Lock gameInputStreamMutex,
-                   InputStream gameInputConfirmationStream) {
+                   Vertx vertx,
+                   EmulatorLauncher launcher,
+                   SaveGameFile saveGameFile,
+                   SessionMetrics metrics,
+                   SessionLog log,
+                   DatagramCookies cookies,
+                   Emulator emulator) {
         this.uuid = uuid;
         this.stop = stop;
-        this.stopSaveWatcher = stopSaveWatcher;
         this.dir = dir;
+        this.rom = rom;
         this.saveGame = saveGame;
-        this.processes = processes;
-        this.videoPort = videoPort;
-        this.audioPort = audioPort;
-        this.inputPort = inputPort;
-        this.saveGameNotifierPort = saveGameNotifierPort;
-        this.lastKnownSaveGameRef = lastKnownSaveGameRef;
-        this.gameInputStream = gameInputStream;
-        this.gameInputStreamMutex = gameInputStreamMutex;
-        this.gameInputConfirmationStream = gameInputConfirmationStream;
+        this.vertx = vertx;
+        this.launcher = launcher;
+        this.saveGameFile = saveGameFile;
+        this.metrics = metrics;
+        this.log = log;
+        this.cookies = cookies;
+        this.emulator = emulator;
+        this.ports = emulator.getVerticle().getPorts();
     }
 
     public void stop() {
         stop.set(true);
-        for (Process process : processes) {
-            process.destroy();
-            ensureWaitFor(process);
+        cancelRewindCapture();
+        synchronized (lifecycleLock) {
+            closeWakeServers();
+            var running = emulator;
+            if (running != null) {
+                running.close();
+                emulator = null;
+            }
+        }
+        metrics.close();
+        rewindLock.lock();
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            getRewindStateFile().toFile().delete();
+        } finally {
+            rewindLock.unlock();
         }
 
         // TODO Delete session files, but only if save game is synced
@@ -79,16 +143,262 @@ class Session {
         dir.delete();
     }
 
-    private static void ensureWaitFor(Process process) {
-        while (true) {
+    /**
+     * Saves the state of melonDS and the save game to disk and stops melonDS, which frees everything but the save
+     * game until the session is used again. Clients are disconnected.
+     *
+     * @param onWakeRequested called when a client connects to a port of the hibernating session, to wake it up
+     */
+    public void hibernate(Runnable onWakeRequested) throws IOException {
+        rewindLock.lock();
+        try {
+            synchronized (lifecycleLock) {
+                var running = emulator;
+                if (running == null || stop.get()) {
+                    return;
+                }
+
+                send(running, new Command.SaveGameSave());
+                send(running, new Command.SaveState(getHibernationStateFile().toAbsolutePath().toString()));
+                cancelRewindCapture();
+                emulator = null;
+                // The ports must be free before they are listened on again
+                await(running.close());
+                rewindBuffer.clear();
+                try {
+                    // The save game watcher has been closed, so what melonDS wrote on hibernating is read here
+                    saveGameFile.refresh();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                listenForWake(onWakeRequested);
+            }
+        } finally {
+            rewindLock.unlock();
+        }
+        System.out.println("Session " + uuid + " is hibernating.");
+    }
+
+    /**
+     * Wakes the session up if it is hibernating. Blocks until melonDS has been restored.
+     */
+    public void wake() throws IOException {
+        awaken();
+    }
+
+    private Emulator awaken() throws IOException {
+        lastActivityNanos = System.nanoTime();
+        var running = emulator;
+        if (running != null) {
+            return running;
+        }
+
+        Emulator woken;
+        synchronized (lifecycleLock) {
+            running = emulator;
+            if (running != null) {
+                return running;
+            }
+            if (stop.get()) {
+                throw new IOException("Session " + uuid + " has been stopped!");
+            }
+
+            closeWakeServers();
+            try {
+                woken = launcher.launch(rom, saveGame, saveGameFile, metrics, log, cookies, ports, stop);
+            } catch (IOException | InterruptedException e) {
+                listenForWake(null);
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            var hibernationState = getHibernationStateFile();
+            try {
+                send(woken, new Command.LoadState(hibernationState.toAbsolutePath().toString()));
+            } catch (IOException e) {
+                await(woken.close());
+                listenForWake(null);
+                throw e;
+            }
+            Files.deleteIfExists(hibernationState);
+            ports = woken.getVerticle().getPorts();
+            emulator = woken;
+            var executor = rewindExecutor;
+            if (executor != null) {
+                scheduleRewindCapture(executor, rewindIntervalMillis);
+            }
+        }
+        System.out.println("Session " + uuid + " woke up.");
+        return woken;
+    }
+
+    /**
+     * Keeps the ports of the hibernating session, so they are free for it once it wakes up.
+     *
+     * @param onWakeRequested null to keep the one of the last hibernation
+     */
+    private void listenForWake(@Nullable Runnable onWakeRequested) {
+        if (onWakeRequested != null) {
+            this.onWakeRequested = onWakeRequested;
+        }
+        var wake = this.onWakeRequested;
+        var currentPorts = ports;
+        for (int port : new int[]{currentPorts.video(), currentPorts.audio(), currentPorts.input()}) {
+            listenForWake(port, connection -> {
+                connection.close();
+                if (wake != null) {
+                    wake.run();
+                }
+            });
+        }
+        // The client keeps this one connected all the time, even while nobody plays
+        listenForWake(currentPorts.saveGame(), NetSocket::close);
+        if (currentPorts.datagram() != 0) {
+            Promise<DatagramSocket> listening = Promise.promise();
+            // Clients send many packets, but one is enough to wake up. Forged ones don't, so they need a cookie.
+            var wakeRequested = new AtomicBoolean(false);
+            var socket = vertx.createDatagramSocket();
+            socket.handler(packet -> {
+                if (wake != null && DatagramServer.hasValidCookie(socket, cookies, packet) && !wakeRequested.getAndSet(true)) {
+                    wake.run();
+                }
+            }).listen(currentPorts.datagram(), "0.0.0.0", listening);
             try {
-                process.waitFor();
-                break;
-            } catch (InterruptedException ignored) {
+                wakeDatagramSockets.add(await(listening.future()));
+            } catch (IOException e) {
+                System.err.println("Could not keep port " + currentPorts.datagram() + " of hibernating session " + uuid + "!");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void listenForWake(int port, Handler<NetSocket> connectHandler) {
+        Promise<NetServer> listening = Promise.promise();
+        vertx.createNetServer().connectHandler(connectHandler).listen(port, listening);
+        try {
+            wakeServers.add(await(listening.future()));
+        } catch (IOException e) {
+            System.err.println("Could not keep port " + port + " of hibernating session " + uuid + "!");
+            e.printStackTrace();
+        }
+    }
+
+    private void closeWakeServers() {
+        for (NetServer server : wakeServers) {
+            Promise<Void> closed = Promise.promise();
+            server.close(closed);
+            try {
+                await(closed.future());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        wakeServers.clear();
+        for (DatagramSocket socket : wakeDatagramSockets) {
+            Promise<Void> closed = Promise.promise();
+            socket.close(closed);
+            try {
+                await(closed.future());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        wakeDatagramSockets.clear();
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        var completed = new CompletableFuture<T>();
+        future.setHandler(result -> {
+            if (result.succeeded()) {
+                completed.complete(result.result());
+            } else {
+                completed.completeExceptionally(result.cause());
             }
+        });
+        try {
+            return completed.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
         }
     }
 
+    /**
+     * Serves the sockets of {@code channels} to a client over one WebSocket, see {@link MultiplexedConnection}.
+     * Must be called on the context of the WebSocket, before it received anything.
+     *
+     * @return false if the session is hibernating, in which case the WebSocket is left alone
+     */
+    public boolean connectMultiplexed(ServerWebSocket webSocket, Set<MultiplexedConnection.Channel> channels) {
+        var running = emulator;
+        if (running == null) {
+            return false;
+        }
+        lastActivityNanos = System.nanoTime();
+        running.getVerticle().connectMultiplexed(webSocket, channels);
+        return true;
+    }
+
+    public boolean isHibernating() {
+        return emulator == null && !stop.get();
+    }
+
+    /**
+     * @return how long no client has been connected to the video, audio or input socket and neither input nor API
+     * calls arrived, or 0 while the session is hibernating
+     */
+    public long getIdleNanos(long now) {
+        var running = emulator;
+        if (running == null) {
+            return 0;
+        }
+        var verticle = running.getVerticle();
+        if (verticle.getVideoBroadcaster().getViewerCount() > 0
+                || verticle.getAudioServer().hasClient()
+                || verticle.getInputServer().getClientCount() > 0) {
+            lastActivityNanos = now;
+            return 0;
+        }
+        return now - Math.max(lastActivityNanos, verticle.getInputServer().getLastInputNanos());
+    }
+
+    /**
+     * @return whether the session hasn't been stopped and melonDS is still running, or hibernating
+     */
+    public boolean isAlive() {
+        var running = emulator;
+        return !stop.get() && (running == null || running.isAlive());
+    }
+
+    public void pause() throws IOException {
+        send(new Command.Pause());
+    }
+
+    public void resume() throws IOException {
+        send(new Command.Resume());
+    }
+
+    private void send(Command command) throws IOException {
+        send(awaken(), command);
+    }
+
+    private static void send(Emulator emulator, Command command) throws IOException {
+        try {
+            emulator.getVerticle().getEmulatorInput().send(command).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private Path getHibernationStateFile() {
+        return dir.toPath().resolve(HIBERNATION_STATE_FILE);
+    }
+
+    /**
+     * Passes rewind states to and from melonDS, which can only save and load states through files. Reused for every
+     * capture and rewind, which all hold the rewind lock.
+     */
+    private Path getRewindStateFile() {
+        return dir.toPath().resolve(REWIND_STATE_FILE);
+    }
+
     public UUID getUuid() {
         return uuid;
     }
@@ -101,51 +411,160 @@ class Session {
         return saveGame;
     }
 
-    public int getVideoPort() {
-        return videoPort;
+    public void uploadSaveGame(byte[] uploadedSaveGame) throws IOException {
+        var running = awaken();
+        // Replaced before writing, so the save watcher doesn't send the upload back
+        running.getVerticle().getSaveGameNotifier().onUploaded(saveGameFile.replace(uploadedSaveGame));
+        Files.write(saveGame.toPath(), uploadedSaveGame);
+        send(running, new Command.LoadGameSave());
+        metrics.onSaveGameUploaded();
     }
 
-    public int getAudioPort() {
-        return audioPort;
+    /**
+     * Writes the gzipped save state to {@code out} while compressing it. melonDS can only save states into a file,
+     * so the uncompressed save state is kept in a temporary file until it has been written.
+     */
+    public void writeSaveState(OutputStream out) throws IOException {
+        var saveStateFile = Files.createTempFile(getDir().toPath(), "savestate", null);
+        try {
+            send(new Command.SaveState(saveStateFile.toAbsolutePath().toString()));
+            try (var gzipOutputStream = new GZIPOutputStream(out, SAVE_STATE_BUFFER_SIZE)) {
+                Files.copy(saveStateFile, gzipOutputStream);
+            }
+        } finally {
+            Files.deleteIfExists(saveStateFile);
+        }
     }
 
-    public int getInputPort() {
-        return inputPort;
+    /**
+     * Loads a gzipped save state while decompressing it. melonDS can only load states from a file, so the
+     * uncompressed save state is kept in a temporary file until it has been loaded.
+     */
+    public void loadSaveState(InputStream gzippedSaveState) throws IOException {
+        var saveStateFile = Files.createTempFile(getDir().toPath(), "savestate", null);
+        try {
+            try (var inputStream = new GZIPInputStream(gzippedSaveState, SAVE_STATE_BUFFER_SIZE)) {
+                Files.copy(inputStream, saveStateFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            send(new Command.LoadState(saveStateFile.toAbsolutePath().toString()));
+        } finally {
+            Files.deleteIfExists(saveStateFile);
+        }
     }
 
-    public int getSaveGameNotifierPort() {
-        return saveGameNotifierPort;
+    /**
+     * Captures a save state for {@link #rewind(long)} every {@code intervalMillis} on {@code executor}. A capture is
+     * skipped while the previous one is still running or the session is hibernating.
+     */
+    public void startRewindCapture(WorkerExecutor executor, long intervalMillis) {
+        rewindExecutor = executor;
+        rewindIntervalMillis = intervalMillis;
+        scheduleRewindCapture(executor, intervalMillis);
     }
 
-    public AtomicReference<byte[]> getLastKnownSaveGameRef() {
-        return lastKnownSaveGameRef;
+    private void scheduleRewindCapture(WorkerExecutor executor, long intervalMillis) {
+        rewindTimerId = vertx.setPeriodic(intervalMillis, timerId -> {
+            if (!capturingRewindState.compareAndSet(false, true)) {
+                return;
+            }
+            executor.<Void>executeBlocking(promise -> {
+                rewindLock.lock();
+                try {
+                    // Captures must not wake the session up
+                    var running = emulator;
+                    if (running != null) {
+                        var state = readSaveState(running);
+                        rewindBuffer.add(state, System.nanoTime());
+                    }
+                    promise.complete();
+                } catch (IOException e) {
+                    promise.fail(e);
+                } finally {
+                    rewindLock.unlock();
+                }
+            }, false, captured -> {
+                capturingRewindState.set(false);
+                if (captured.failed() && !stop.get()) {
+                    System.err.println("Could not capture rewind state of session " + uuid + "!");
+                    captured.cause().printStackTrace();
+                }
+            });
+        });
     }
 
-    public void onSaveGameUploaded() throws IOException {
-        new Command.LoadGameSave().writeTo(gameInputStream, gameInputStreamMutex, gameInputConfirmationStream);
+    private void cancelRewindCapture() {
+        var timerId = rewindTimerId;
+        if (timerId >= 0) {
+            vertx.cancelTimer(timerId);
+            rewindTimerId = -1;
+        }
     }
 
-    public Path getSaveState() throws IOException {
-        var saveStateFile = Files.createTempFile(getDir().toPath(), "savestate", null);
-        new Command.SaveState(saveStateFile.toAbsolutePath().toString()).writeTo(gameInputStream, gameInputStreamMutex, gameInputConfirmationStream);
-        var gzippedSaveStateFile = Files.createTempFile(getDir().toPath(), "savestate", ".gz");
-        try (var outputStream = new GZIPOutputStream(Files.newOutputStream(gzippedSaveStateFile))) {
-            Files.copy(saveStateFile, outputStream);
+    /**
+     * Loads the newest captured state that is at least {@code millis} old, or the oldest one there is.
+     *
+     * @return the restored state, or null if none has been captured yet
+     */
+    @Nullable
+    public RewindBuffer.Restored rewind(long millis) throws IOException {
+        rewindLock.lock();
+        try {
+            var restored = rewindBuffer.rewind(TimeUnit.MILLISECONDS.toNanos(millis), System.nanoTime());
+            if (restored != null) {
+                loadState(restored.state());
+            }
+            return restored;
+        } finally {
+            rewindLock.unlock();
         }
-        saveStateFile.toFile().delete();
-        return gzippedSaveStateFile;
     }
 
-    public void loadSaveState(Path saveState) throws IOException {
-        var unzippedSaveStateFile = Files.createTempFile(getDir().toPath(), "savestate", null);
-        try (var inputStream = new GZIPInputStream(Files.newInputStream(saveState))) {
-            Files.copy(inputStream, unzippedSaveStateFile, StandardCopyOption.REPLACE_EXISTING);
+    private byte[] readSaveState(Emulator running) throws IOException {
+        var saveStateFile = getRewindStateFile();
+        send(running, new Command.SaveState(saveStateFile.toAbsolutePath().toString()));
+        return Files.readAllBytes(saveStateFile);
+    }
+
+    private void loadState(byte[] saveState) throws IOException {
+        var saveStateFile = getRewindStateFile();
+        Files.write(saveStateFile, saveState);
+        send(new Command.LoadState(saveStateFile.toAbsolutePath().toString()));
+    }
+
+    /**
+     * Doesn't wake the session up, so monitoring doesn't keep sessions from hibernating.
+     */
+    public Stats getStats() {
+        var running = emulator;
+        var rewindStats = rewindBuffer.getStats(System.nanoTime());
+        if (running == null) {
+            return new Stats(List.of(), null, List.of(), rewindStats);
         }
-        new Command.LoadState(unzippedSaveStateFile.toAbsolutePath().toString()).writeTo(gameInputStream, gameInputStreamMutex, gameInputConfirmationStream);
-        unzippedSaveStateFile.toFile().delete();
+        var verticle = running.getVerticle();
+        var datagramServer = verticle.getDatagramServer();
+        return new Stats(verticle.getVideoBroadcaster().getViewerStats(),
+                verticle.getAudioServer().getStats(),
+                datagramServer != null ? datagramServer.getClientStats() : List.of(),
+                rewindStats);
+    }
+
+    /**
+     * Doesn't wake the session up, see {@link #getStats()}.
+     */
+    public LatencyTracer.Snapshot getLatency() {
+        var running = emulator;
+        return running != null ? running.getVerticle().getLatencyTracer().snapshot() : new LatencyTracer().snapshot();
+    }
+
+    /**
+     * Doesn't wake the session up, the log of the last melonDS is kept while the session hibernates.
+     */
+    SessionLog getLog() {
+        return log;
     }
 
     public Public toPublic() {
-        return new Public(uuid, videoPort, audioPort, inputPort, saveGameNotifierPort);
+        var currentPorts = ports;
+        return new Public(uuid, currentPorts.video(), currentPorts.audio(), currentPorts.input(), currentPorts.saveGame(), currentPorts.datagram());
     }
 }
@@ -0,0 +1,59 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.platform.ds.DsServerOutputReader;
+import com.cbruegg.emuserver.utils.LogSink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The log of melonDS for one session, across hibernation. The newest {@code capacity} lines are kept in a ring buffer
+ * for {@link #tail(int)}, and every line is also passed on to the shared {@link LogSink}, prefixed with the session's
+ * UUID. Neither ever blocks melonDS.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class SessionLog implements DsServerOutputReader.LineListener {
+
+    private final LogSink sink;
+    private final byte[] prefix;
+    // Guarded by this
+    private final byte[][] lines;
+    private long lineCount = 0;
+
+    /**
+     * @param capacity the number of lines that are kept, or 0 to only pass them on
+     */
+    SessionLog(LogSink sink, UUID sessionId, int capacity) {
+        this.sink = sink;
+        this.prefix = ("[" + sessionId + "] ").getBytes(StandardCharsets.UTF_8);
+        this.lines = new byte[Math.max(0, capacity)][];
+    }
+
+    @Override
+    public void onLine(byte[] line, int offset, int length) {
+        var copy = Arrays.copyOfRange(line, offset, offset + length);
+        if (lines.length > 0) {
+            synchronized (this) {
+                lines[(int) (lineCount % lines.length)] = copy;
+                lineCount++;
+            }
+        }
+        sink.offer(prefix, copy);
+    }
+
+    /**
+     * @return the newest {@code count} lines that are kept, oldest first, without line breaks
+     */
+    synchronized List<byte[]> tail(int count) {
+        var kept = (int) Math.min(lineCount, lines.length);
+        var tail = new ArrayList<byte[]>();
+        for (long i = lineCount - Math.min(kept, Math.max(0, count)); i < lineCount; i++) {
+            tail.add(lines[(int) (i % lines.length)]);
+        }
+        return tail;
+    }
+}
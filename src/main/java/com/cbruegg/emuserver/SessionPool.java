@@ -0,0 +1,300 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.Counter;
+import com.cbruegg.emuserver.metrics.MetricsRegistry;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sessions that have been started ahead of time and are paused until a client claims them, keyed by ROM MD5.
+ * Booting melonDS and connecting to it takes seconds, which a client claiming a warm session doesn't wait for.
+ * <p>
+ * The pool keeps a fixed number of warm sessions, which are shared out among the ROMs by how popular they are:
+ * each claim adds to the popularity of its ROM, which halves after {@code halfLifeMs} without claims.
+ * Warm sessions of ROMs that became less popular are stopped, least popular first, to make room for others.
+ * No warm sessions are started while all cores are taken, see {@link CpuPlacement}.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class SessionPool {
+
+    interface Factory {
+        /**
+         * Starts a session of the ROM without a save game.
+         */
+        Session create(String romMd5) throws IOException, InterruptedException;
+    }
+
+    private static final long REBALANCE_INTERVAL_MS = 5000;
+    // Popularity below which a ROM is forgotten
+    private static final double MIN_POPULARITY = 0.05;
+
+    private final WorkerExecutor executor;
+    private final Factory factory;
+    private final CpuPlacement cpuPlacement;
+    private final int size;
+    private final double decayPerNano;
+    private final Counter hits;
+    private final Counter misses;
+    private final AtomicBoolean rebalancing = new AtomicBoolean(false);
+    // All guarded by this
+    private final Map<String, Deque<Session>> warm = new HashMap<>();
+    private final Map<String, Popularity> popularity = new HashMap<>();
+    private int warmCount = 0;
+    private int startingCount = 0;
+    private boolean closed = false;
+
+    private static final class Popularity {
+        double value;
+        long updatedNanos;
+    }
+
+    /**
+     * @param size     number of sessions that are kept warm for all ROMs together
+     * @param executor runs the blocking starts and stops of warm sessions
+     */
+    SessionPool(Vertx vertx,
+                WorkerExecutor executor,
+                Factory factory,
+                CpuPlacement cpuPlacement,
+                int size,
+                long halfLifeMs,
+                MetricsRegistry metricsRegistry) {
+        this.executor = executor;
+        this.factory = factory;
+        this.cpuPlacement = cpuPlacement;
+        this.size = size;
+        this.decayPerNano = Math.log(2) / TimeUnit.MILLISECONDS.toNanos(halfLifeMs);
+        var claimsHelp = "Session requests without a save game, by whether a warm session could be claimed.";
+        hits = metricsRegistry.counter("emuserver_session_pool_claims_total", claimsHelp, "result", "hit");
+        misses = metricsRegistry.counter("emuserver_session_pool_claims_total", claimsHelp, "result", "miss");
+        metricsRegistry.gauge("emuserver_session_pool_warm", "Warm sessions that are waiting to be claimed.", this::getWarmCount);
+        vertx.setPeriodic(REBALANCE_INTERVAL_MS, id -> rebalance());
+    }
+
+    /**
+     * Takes a warm session of the ROM, which is resumed. Either way, the ROM becomes more popular, so
+     * following claims are more likely to find a warm session.
+     *
+     * @return the session, or null if none was warm
+     */
+    @Nullable
+    Session claim(String romMd5) {
+        Session session;
+        synchronized (this) {
+            popularityOf(romMd5, System.nanoTime()).value++;
+            session = poll(romMd5);
+        }
+        // Refilled right away, instead of with the next regular rebalance
+        rebalance();
+
+        while (session != null) {
+            try {
+                if (session.isAlive()) {
+                    session.resume();
+                    hits.increment();
+                    return session;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            stopQuietly(session);
+            synchronized (this) {
+                session = poll(romMd5);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    private synchronized Session poll(String romMd5) {
+        var sessions = warm.get(romMd5);
+        var session = sessions != null ? sessions.pollFirst() : null;
+        if (session != null) {
+            warmCount--;
+        }
+        return session;
+    }
+
+    synchronized boolean hasWarm(String romMd5) {
+        var sessions = warm.get(romMd5);
+        return sessions != null && !sessions.isEmpty();
+    }
+
+    synchronized int getWarmCount() {
+        return warmCount;
+    }
+
+    private void rebalance() {
+        if (!rebalancing.compareAndSet(false, true)) {
+            return;
+        }
+        executor.<Void>executeBlocking(promise -> {
+            try {
+                stopSurplus();
+                startMissing();
+            } finally {
+                rebalancing.set(false);
+                promise.complete();
+            }
+        }, false, null);
+    }
+
+    private void stopSurplus() {
+        var surplus = new ArrayList<Session>();
+        synchronized (this) {
+            var targets = computeTargets();
+            for (var iterator = warm.entrySet().iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                var sessions = entry.getValue();
+                var target = targets.getOrDefault(entry.getKey(), 0);
+                while (sessions.size() > target) {
+                    // The most recently started ones, so the pool keeps those that are booted furthest
+                    surplus.add(sessions.pollLast());
+                    warmCount--;
+                }
+                if (sessions.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+        surplus.forEach(SessionPool::stopQuietly);
+    }
+
+    private void startMissing() {
+        while (true) {
+            String romMd5 = null;
+            synchronized (this) {
+                if (closed || warmCount + startingCount >= size) {
+                    return;
+                }
+                // Starting would fail, and sessions that are requested need the cores more
+                if (cpuPlacement.getFreeSlots() <= 0) {
+                    return;
+                }
+                var targets = computeTargets();
+                var mostMissing = 0;
+                for (var target : targets.entrySet()) {
+                    var sessions = warm.get(target.getKey());
+                    var missing = target.getValue() - (sessions != null ? sessions.size() : 0);
+                    if (missing > mostMissing) {
+                        romMd5 = target.getKey();
+                        mostMissing = missing;
+                    }
+                }
+                if (romMd5 == null) {
+                    return;
+                }
+                startingCount++;
+            }
+
+            Session session = null;
+            try {
+                session = factory.create(romMd5);
+                session.pause();
+            } catch (IOException | InterruptedException e) {
+                System.err.println("Could not start warm session of ROM " + romMd5 + "!");
+                e.printStackTrace();
+                if (session != null) {
+                    stopQuietly(session);
+                }
+                synchronized (this) {
+                    startingCount--;
+                }
+                // Retried with the next rebalance instead of in a loop
+                return;
+            }
+
+            synchronized (this) {
+                startingCount--;
+                if (!closed) {
+                    warm.computeIfAbsent(romMd5, md5 -> new ArrayDeque<>()).addLast(session);
+                    warmCount++;
+                    continue;
+                }
+            }
+            // Closed while it was starting
+            stopQuietly(session);
+            return;
+        }
+    }
+
+    /**
+     * Stops all warm sessions, and no more are started. Sessions that are still starting are stopped once they are.
+     */
+    void close() {
+        var stopped = new ArrayList<Session>();
+        synchronized (this) {
+            closed = true;
+            warm.values().forEach(stopped::addAll);
+            warm.clear();
+            warmCount = 0;
+        }
+        stopped.forEach(SessionPool::stopQuietly);
+    }
+
+    /**
+     * Shares the pool out among the ROMs in proportion to their popularity, rounding in favor of popular ROMs.
+     */
+    private Map<String, Integer> computeTargets() {
+        var now = System.nanoTime();
+        var total = 0.0;
+        for (var iterator = popularity.values().iterator(); iterator.hasNext(); ) {
+            var rom = iterator.next();
+            decay(rom, now);
+            if (rom.value < MIN_POPULARITY) {
+                iterator.remove();
+            } else {
+                total += rom.value;
+            }
+        }
+
+        var roms = new ArrayList<>(popularity.keySet());
+        roms.sort(Comparator.comparingDouble((String md5) -> popularity.get(md5).value).reversed());
+        var targets = new HashMap<String, Integer>();
+        var remaining = size;
+        for (String md5 : roms) {
+            if (remaining <= 0) {
+                break;
+            }
+            var target = Math.min(remaining, (int) Math.ceil(size * popularity.get(md5).value / total));
+            targets.put(md5, target);
+            remaining -= target;
+        }
+        return targets;
+    }
+
+    private Popularity popularityOf(String romMd5, long now) {
+        var rom = popularity.computeIfAbsent(romMd5, md5 -> {
+            var created = new Popularity();
+            created.updatedNanos = now;
+            return created;
+        });
+        decay(rom, now);
+        return rom;
+    }
+
+    private void decay(Popularity rom, long now) {
+        rom.value *= Math.exp(-decayPerNano * (now - rom.updatedNanos));
+        rom.updatedNanos = now;
+    }
+
+    private static void stopQuietly(Session session) {
+        try {
+            session.stop();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
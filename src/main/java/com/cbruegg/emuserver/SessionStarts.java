@@ -0,0 +1,227 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.Counter;
+import com.cbruegg.emuserver.metrics.MetricsRegistry;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Starts sessions in the background, so requesting one doesn't hold up a thread until melonDS is running.
+ * At most {@code concurrency} sessions are started at a time on their own executor, further ones wait in a queue of
+ * {@code queueSize}. When the queue is full, new starts are rejected instead of letting the backlog grow.
+ * <p>
+ * Each start goes from {@link State#QUEUED} through {@link State#STARTING} to {@link State#READY} or
+ * {@link State#FAILED}, and its status is kept for a while after it finished, for clients to poll.
+ * <p>
+ * All methods may be called from any thread.
+ */
+final class SessionStarts {
+
+    enum State {
+        QUEUED, STARTING, READY, FAILED
+    }
+
+    /**
+     * @param session the started session, once it is {@link State#READY}
+     * @param error   why the session could not be started, once it {@link State#FAILED}
+     */
+    record Status(UUID id, State state, @Nullable Session.Public session, @Nullable String error) {
+    }
+
+    interface Starter {
+        Session start() throws IOException, InterruptedException;
+    }
+
+    private static final long STATUS_RETENTION_MS = TimeUnit.MINUTES.toMillis(5);
+    // Weight of the latest start in the average start time
+    private static final double START_TIME_SMOOTHING = 0.2;
+
+    private final Vertx vertx;
+    private final WorkerExecutor executor;
+    private final Supplier<UUID> ids;
+    private final int concurrency;
+    private final int queueSize;
+    private final Counter rejections;
+    private final Map<UUID, Start> starts = new ConcurrentHashMap<>();
+    // All guarded by this
+    private final Deque<Start> queue = new ArrayDeque<>();
+    private int running = 0;
+    private double averageStartNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private static final class Start {
+        final UUID id;
+        final Starter starter;
+        // All guarded by the SessionStarts
+        State state = State.QUEUED;
+        @Nullable
+        Session session;
+        @Nullable
+        String error;
+        final List<Runnable> waiters = new ArrayList<>();
+
+        Start(UUID id, Starter starter) {
+            this.id = id;
+            this.starter = starter;
+        }
+    }
+
+    /**
+     * @param executor runs the blocking starts, with at least {@code concurrency} threads
+     * @param ids      creates the IDs of the starts
+     */
+    SessionStarts(Vertx vertx, WorkerExecutor executor, Supplier<UUID> ids, int concurrency, int queueSize, MetricsRegistry metricsRegistry) {
+        this.vertx = vertx;
+        this.executor = executor;
+        this.ids = ids;
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+        rejections = metricsRegistry.counter("emuserver_session_starts_rejected_total", "Session starts that were rejected because the queue was full.");
+        metricsRegistry.gauge("emuserver_session_starts_queued", "Session starts that wait for a free slot.", this::getQueued);
+        metricsRegistry.gauge("emuserver_session_starts_running", "Sessions that are being started.", this::getRunning);
+    }
+
+    /**
+     * @return the status of the start, or null if the queue is full
+     */
+    @Nullable
+    Status submit(Starter starter) {
+        var start = new Start(ids.get(), starter);
+        synchronized (this) {
+            if (running >= concurrency && queue.size() >= queueSize) {
+                rejections.increment();
+                return null;
+            }
+            starts.put(start.id, start);
+            queue.addLast(start);
+        }
+        startQueued();
+        return getStatus(start.id);
+    }
+
+    private void startQueued() {
+        Start start;
+        synchronized (this) {
+            if (running >= concurrency || queue.isEmpty()) {
+                return;
+            }
+            start = queue.pollFirst();
+            start.state = State.STARTING;
+            running++;
+        }
+
+        var startedNanos = System.nanoTime();
+        executor.<Session>executeBlocking(promise -> {
+            try {
+                promise.complete(start.starter.start());
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                promise.fail(e);
+            }
+        }, false, started -> {
+            List<Runnable> waiters;
+            synchronized (this) {
+                running--;
+                if (started.succeeded()) {
+                    start.state = State.READY;
+                    start.session = started.result();
+                    averageStartNanos += START_TIME_SMOOTHING * ((System.nanoTime() - startedNanos) - averageStartNanos);
+                } else {
+                    started.cause().printStackTrace();
+                    start.state = State.FAILED;
+                    start.error = "Could not create session!";
+                }
+                waiters = new ArrayList<>(start.waiters);
+                start.waiters.clear();
+            }
+            waiters.forEach(Runnable::run);
+            vertx.setTimer(STATUS_RETENTION_MS, timerId -> starts.remove(start.id));
+            startQueued();
+        });
+        // Fills all free slots
+        startQueued();
+    }
+
+    @Nullable
+    Status getStatus(UUID id) {
+        var start = starts.get(id);
+        if (start == null) {
+            return null;
+        }
+        synchronized (this) {
+            var session = start.session != null ? start.session.toPublic() : null;
+            return new Status(start.id, start.state, session, start.error);
+        }
+    }
+
+    /**
+     * Calls {@code handler} on the calling context with the status of the start once it finished, or after
+     * {@code timeoutMs} at the latest. The handler gets null if the start doesn't exist.
+     */
+    void awaitFinished(UUID id, long timeoutMs, Handler<Status> handler) {
+        var start = starts.get(id);
+        if (start == null) {
+            handler.handle(null);
+            return;
+        }
+
+        var context = vertx.getOrCreateContext();
+        var waiter = new Runnable() {
+            private boolean done = false;
+            private long timerId = -1;
+
+            @Override
+            public void run() {
+                context.runOnContext(v -> {
+                    if (!done) {
+                        done = true;
+                        vertx.cancelTimer(timerId);
+                        handler.handle(getStatus(id));
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (start.state != State.READY && start.state != State.FAILED) {
+                start.waiters.add(waiter);
+                waiter.timerId = vertx.setTimer(Math.max(1, timeoutMs), timerId -> waiter.run());
+                return;
+            }
+        }
+        handler.handle(getStatus(id));
+    }
+
+    /**
+     * @return how long a rejected client should wait before it tries again, estimated from the time starts take
+     */
+    synchronized long getRetryAfterSeconds() {
+        var nanos = averageStartNanos * getPending() / concurrency;
+        return Math.max(1, (long) Math.ceil(nanos / TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    /**
+     * @return the number of sessions that are queued or being started
+     */
+    synchronized int getPending() {
+        return queue.size() + running;
+    }
+
+    private synchronized int getQueued() {
+        return queue.size();
+    }
+
+    private synchronized int getRunning() {
+        return running;
+    }
+}
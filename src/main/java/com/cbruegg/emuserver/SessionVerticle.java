@@ -0,0 +1,253 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.DsServerOutputReader;
+import com.cbruegg.emuserver.platform.ds.EmulatorInput;
+import com.cbruegg.emuserver.platform.ds.EncoderPool;
+import com.cbruegg.emuserver.platform.ds.FrameReader;
+import com.cbruegg.emuserver.platform.ds.LatencyTracer;
+import com.cbruegg.emuserver.platform.ds.QualityLadder;
+import com.cbruegg.emuserver.platform.ds.VideoBroadcaster;
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+/**
+ * Serves all sockets of one session on the event loop the verticle is deployed to. Sessions share the event loops
+ * of Vert.x instead of having threads of their own. Undeploying the verticle closes all of its sockets.
+ */
+final class SessionVerticle extends AbstractVerticle {
+
+    /**
+     * Ports to listen on, each of which may be 0 for any free port.
+     */
+    record Ports(int video, int audio, int input, int saveGame, int datagram) {
+        static final Ports ANY = new Ports(0, 0, 0, 0, 0);
+    }
+
+    private static final int IPTOS_LOWDELAY = 0x10;
+    private static final String HOST = "0.0.0.0"; // TODO Dual-stack socket pls
+
+    private final DsServerOutputReader.PortSpec portSpec;
+    private final Ports ports;
+    private final SocketChannel screenChannel;
+    private final FrameReader frameReader;
+    private final WorkerExecutor videoEncoderExecutor;
+    private final EncoderPool encoderPool;
+    private final QualityLadder qualityLadder;
+    private final SaveGameFile saveGameFile;
+    private final DatagramCookies cookies;
+    private final SessionMetrics metrics;
+    private final LatencyTracer latencyTracer = new LatencyTracer();
+
+    private volatile VideoBroadcaster videoBroadcaster;
+    private volatile AudioServer audioServer;
+    private volatile EmulatorInput emulatorInput;
+    private volatile InputServer inputServer;
+    private volatile SaveGameNotifier saveGameNotifier;
+    private volatile DatagramServer datagramServer;
+    private volatile int videoPort;
+    private volatile int audioPort;
+    private volatile int inputPort;
+    private volatile int saveGameNotifierPort;
+    // 0 without the datagram transport
+    private volatile int datagramPort;
+
+    /**
+     * @param ports         the ports to listen on, where available. Otherwise, any free port is used.
+     * @param screenChannel the connected screen socket of melonDS, which is read by {@code frameReader}
+     */
+    SessionVerticle(DsServerOutputReader.PortSpec portSpec,
+                    Ports ports,
+                    SocketChannel screenChannel,
+                    FrameReader frameReader,
+                    WorkerExecutor videoEncoderExecutor,
+                    EncoderPool encoderPool,
+                    QualityLadder qualityLadder,
+                    SaveGameFile saveGameFile,
+                    DatagramCookies cookies,
+                    SessionMetrics metrics) {
+        this.portSpec = portSpec;
+        this.ports = ports;
+        this.screenChannel = screenChannel;
+        this.frameReader = frameReader;
+        this.videoEncoderExecutor = videoEncoderExecutor;
+        this.encoderPool = encoderPool;
+        this.qualityLadder = qualityLadder;
+        this.saveGameFile = saveGameFile;
+        this.cookies = cookies;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        var emulatorClient = vertx.createNetClient(new NetClientOptions().setTcpNoDelay(true));
+        Promise<NetSocket> audioConnected = Promise.promise();
+        Promise<NetSocket> inputConnected = Promise.promise();
+        emulatorClient.connect(portSpec.audioSocketPort(), "localhost", audioConnected);
+        emulatorClient.connect(portSpec.inputSocketPort(), "localhost", inputConnected);
+
+        CompositeFuture.all(audioConnected.future(), inputConnected.future()).compose(connected -> {
+            try {
+                videoBroadcaster = new VideoBroadcaster(context,
+                        screenChannel,
+                        frameReader,
+                        videoEncoderExecutor,
+                        encoderPool,
+                        Config.VIDEO_KEYFRAME_INTERVAL,
+                        Config.VIDEO_RING_BUFFER_FRAMES,
+                        qualityLadder,
+                        Config.VIDEO_TARGET_RTT_MS,
+                        latencyTracer,
+                        metrics);
+            } catch (IOException e) {
+                return Future.failedFuture(e);
+            }
+            audioServer = new AudioServer(vertx, audioConnected.future().result(), Config.AUDIO_LATENCY_BUDGET_MS, metrics);
+            emulatorInput = new EmulatorInput(context, inputConnected.future().result(), portSpec.commandEncoding());
+            inputServer = new InputServer(emulatorInput, latencyTracer, metrics);
+            saveGameNotifier = new SaveGameNotifier(context, saveGameFile, metrics);
+
+            var lowDelayOptions = new NetServerOptions().setTcpNoDelay(true).setTrafficClass(IPTOS_LOWDELAY);
+            var video = listen(new NetServerOptions(lowDelayOptions).setSendBufferSize(1), ports.video(), videoBroadcaster::subscribe);
+            var audio = listen(new NetServerOptions(lowDelayOptions).setSendBufferSize(1), ports.audio(), audioServer::onClient);
+            var input = listen(new NetServerOptions(), ports.input(), inputServer::onClient);
+            var saveGame = listen(new NetServerOptions(), ports.saveGame(), saveGameNotifier::onClient);
+            var datagram = Config.TRANSPORT_DATAGRAM ? listenDatagram(ports.datagram()) : Future.<DatagramSocket>succeededFuture();
+            return CompositeFuture.all(video, audio, input, saveGame, datagram).map(listening -> {
+                videoPort = video.result().actualPort();
+                audioPort = audio.result().actualPort();
+                inputPort = input.result().actualPort();
+                saveGameNotifierPort = saveGame.result().actualPort();
+                if (datagram.result() != null) {
+                    datagramServer = new DatagramServer(vertx, datagram.result(), cookies, inputServer, audioServer);
+                    datagramPort = datagram.result().localAddress().port();
+                }
+                return (Void) null;
+            });
+        }).setHandler(startPromise);
+    }
+
+    private Future<NetServer> listen(NetServerOptions options, int port, Handler<ClientConnection> connectHandler) {
+        Promise<NetServer> listening = Promise.promise();
+        vertx.createNetServer(options).connectHandler(socket -> connectHandler.handle(ClientConnection.of(socket))).listen(port, HOST, listening);
+        if (port == 0) {
+            return listening.future();
+        }
+        // The port may have been taken in the meantime
+        return listening.future().recover(e -> listen(options, 0, connectHandler));
+    }
+
+    /**
+     * Serves the sockets of {@code channels} to a client over one WebSocket. Must be called on the context of the
+     * WebSocket, before it received anything.
+     */
+    void connectMultiplexed(ServerWebSocket webSocket, Set<MultiplexedConnection.Channel> channels) {
+        var connection = new MultiplexedConnection(context, webSocket, Config.TRANSPORT_MULTIPLEXED_WINDOW_BYTES);
+        context.runOnContext(v -> {
+            for (MultiplexedConnection.Channel channel : channels) {
+                var socket = connection.open(channel);
+                switch (channel) {
+                    case INPUT -> inputServer.onClient(socket);
+                    case AUDIO -> audioServer.onClient(socket);
+                    case VIDEO -> videoBroadcaster.subscribe(socket);
+                    case SAVE_GAME -> saveGameNotifier.onClient(socket);
+                }
+            }
+        });
+    }
+
+    private Future<DatagramSocket> listenDatagram(int port) {
+        Promise<DatagramSocket> listening = Promise.promise();
+        vertx.createDatagramSocket(new DatagramSocketOptions().setTrafficClass(IPTOS_LOWDELAY)).listen(port, HOST, listening);
+        if (port == 0) {
+            return listening.future();
+        }
+        // The port may have been taken in the meantime
+        return listening.future().recover(e -> listenDatagram(0));
+    }
+
+    @Override
+    public void stop() {
+        if (datagramServer != null) {
+            datagramServer.close();
+        }
+        if (videoBroadcaster != null) {
+            videoBroadcaster.close();
+        } else {
+            try {
+                screenChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    VideoBroadcaster getVideoBroadcaster() {
+        return videoBroadcaster;
+    }
+
+    AudioServer getAudioServer() {
+        return audioServer;
+    }
+
+    LatencyTracer getLatencyTracer() {
+        return latencyTracer;
+    }
+
+    EmulatorInput getEmulatorInput() {
+        return emulatorInput;
+    }
+
+    InputServer getInputServer() {
+        return inputServer;
+    }
+
+    SaveGameNotifier getSaveGameNotifier() {
+        return saveGameNotifier;
+    }
+
+    int getVideoPort() {
+        return videoPort;
+    }
+
+    int getAudioPort() {
+        return audioPort;
+    }
+
+    int getInputPort() {
+        return inputPort;
+    }
+
+    int getSaveGameNotifierPort() {
+        return saveGameNotifierPort;
+    }
+
+    /**
+     * @return null without the datagram transport
+     */
+    @Nullable
+    DatagramServer getDatagramServer() {
+        return datagramServer;
+    }
+
+    Ports getPorts() {
+        return new Ports(videoPort, audioPort, inputPort, saveGameNotifierPort, datagramPort);
+    }
+}
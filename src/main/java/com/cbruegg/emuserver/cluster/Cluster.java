@@ -0,0 +1,186 @@
+package com.cbruegg.emuserver.cluster;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import javax.annotation.Nullable;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The emuserver instances that share the work, each known by the base URL of its API, e.g.
+ * {@code http://localhost:1114}. All instances are configured with the same members, in the same order. Every key,
+ * such as a ROM MD5, is owned by one of the members that are up, chosen with a {@link ConsistentHashRing}, so every
+ * instance agrees on the owner without asking the others. As the owners change when members go down or come back,
+ * the ring only decides where new things go. IDs that an instance creates, e.g. of sessions, tell which instance
+ * created them instead, see {@link #newOwnedId()}.
+ * <p>
+ * Whether the other members are up is checked periodically with {@link #HEALTH_PATH}. A member that is down owns no
+ * keys until it is up again. An instance without other members owns all keys.
+ * <p>
+ * All methods may be called from any thread.
+ */
+public final class Cluster {
+
+    public static final String HEALTH_PATH = "/cluster/health";
+
+    public record Member(String url, boolean up) {
+    }
+
+    private static final int POINTS_PER_MEMBER = 128;
+    // The index of the member that created an ID takes its top bits, which are random in a version 4 UUID
+    private static final int MEMBER_INDEX_SHIFT = 48;
+
+    private final Vertx vertx;
+    private final String self;
+    private final int selfIndex;
+    private final List<String> members;
+    private final Map<String, Boolean> up = new ConcurrentHashMap<>();
+    private final HttpClient client;
+    private final Duration timeout;
+    private volatile ConsistentHashRing ring;
+
+    /**
+     * @param self    the URL of this instance, which is added to the members if they don't contain it
+     * @param members the URLs of all instances
+     */
+    public Cluster(Vertx vertx, String self, List<String> members, long healthIntervalMs) {
+        this.vertx = vertx;
+        this.self = self;
+        this.members = new ArrayList<>(members);
+        if (!this.members.contains(self)) {
+            this.members.add(self);
+        }
+        this.selfIndex = this.members.indexOf(self);
+        // Members are assumed to be up until they fail a check, so a restarted instance routes right away
+        for (String member : this.members) {
+            up.put(member, true);
+        }
+        this.timeout = Duration.ofMillis(healthIntervalMs);
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+        rebuildRing();
+        if (this.members.size() > 1) {
+            vertx.setPeriodic(healthIntervalMs, timerId -> checkHealth());
+        }
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public boolean isClustered() {
+        return members.size() > 1;
+    }
+
+    /**
+     * @return the URL of the member that owns the key
+     */
+    public String ownerOf(String key) {
+        return ring.ownerOf(key);
+    }
+
+    public boolean isOwnedBySelf(String key) {
+        return ownerOf(key).equals(self);
+    }
+
+    /**
+     * @return a new random UUID that tells it was created by this instance, e.g. for a session that is started here
+     */
+    public UUID newOwnedId() {
+        var id = UUID.randomUUID();
+        var mostSignificantBits = (id.getMostSignificantBits() & ((1L << MEMBER_INDEX_SHIFT) - 1)) | ((long) selfIndex << MEMBER_INDEX_SHIFT);
+        return new UUID(mostSignificantBits, id.getLeastSignificantBits());
+    }
+
+    /**
+     * @return the URL of the member that created the ID with {@link #newOwnedId()}, whether it is up or not,
+     * or null if the ID wasn't created by a member
+     */
+    @Nullable
+    public String creatorOf(UUID id) {
+        var index = (int) (id.getMostSignificantBits() >>> MEMBER_INDEX_SHIFT);
+        return index < members.size() ? members.get(index) : null;
+    }
+
+    /**
+     * Asks the other members that are up for {@code path}, e.g. whether they have a ROM that was stored before the
+     * owners changed.
+     *
+     * @param handler called on the context of the caller with the first member that answered {@code true}, or with
+     *                null once none did
+     */
+    public void findMember(String path, Handler<String> handler) {
+        var context = vertx.getOrCreateContext();
+        var others = new ArrayList<String>();
+        for (String member : members) {
+            if (!member.equals(self) && up.get(member)) {
+                others.add(member);
+            }
+        }
+        if (others.isEmpty()) {
+            handler.handle(null);
+            return;
+        }
+
+        var pending = new AtomicInteger(others.size());
+        var found = new AtomicBoolean(false);
+        for (String member : others) {
+            var request = HttpRequest.newBuilder(URI.create(member + path)).timeout(timeout).build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, e) -> {
+                var has = e == null && response.statusCode() == HttpURLConnection.HTTP_OK && response.body().trim().equals("true");
+                if (has ? found.compareAndSet(false, true) : pending.decrementAndGet() == 0 && !found.get()) {
+                    context.runOnContext(v -> handler.handle(has ? member : null));
+                }
+            });
+        }
+    }
+
+    public List<Member> getMembers() {
+        var result = new ArrayList<Member>();
+        for (String member : members) {
+            result.add(new Member(member, up.get(member)));
+        }
+        return result;
+    }
+
+    private void checkHealth() {
+        for (String member : members) {
+            if (member.equals(self)) {
+                continue;
+            }
+            var request = HttpRequest.newBuilder(URI.create(member + HEALTH_PATH)).timeout(timeout).build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> setUp(member, e == null && response.statusCode() == HttpURLConnection.HTTP_OK));
+        }
+    }
+
+    private void setUp(String member, boolean isUp) {
+        var wasUp = up.put(member, isUp);
+        if (wasUp == null || wasUp != isUp) {
+            System.out.println("Cluster member " + member + " is " + (isUp ? "up" : "down") + ".");
+            rebuildRing();
+        }
+    }
+
+    private synchronized void rebuildRing() {
+        var upMembers = new ArrayList<String>();
+        for (String member : members) {
+            // This instance can't be down from its own point of view
+            if (member.equals(self) || up.get(member)) {
+                upMembers.add(member);
+            }
+        }
+        ring = new ConsistentHashRing(upMembers, POINTS_PER_MEMBER);
+    }
+}
@@ -0,0 +1,4 @@
+@ParametersAreNonnullByDefault
+package com.cbruegg.emuserver.cluster;
+
+import javax.annotation.ParametersAreNonnullByDefault;
\ No newline at end of file
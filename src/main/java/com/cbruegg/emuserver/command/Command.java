@@ -1,10 +1,7 @@
 package com.cbruegg.emuserver.command;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.locks.Lock;
 
 public interface Command {
     String getId();
@@ -21,20 +18,37 @@ public interface Command {
         return getId() + " " + getArguments() + "\n";
     }
 
-    default void writeTo(OutputStream outputStream, Lock lock, InputStream gameInputConfirmationStream) throws IOException {
+    /**
+     * Identifies the command in {@link CommandEncoding#BINARY}.
+     */
+    byte getOpcode();
+
+    /**
+     * Writes the arguments for {@link CommandEncoding#BINARY}. Numbers have a fixed width and are big-endian,
+     * strings are UTF-8 prefixed with their length as a uint16.
+     */
+    default void writeArguments(ByteBuffer into) {
+    }
+
+    /**
+     * Writes the command as text, prefixed with its length as a big-endian int32.
+     */
+    default void encodeText(ByteBuffer into) {
         var bytes = serialize().getBytes(StandardCharsets.UTF_8);
-        var lengthBytes = new byte[]{(byte) (bytes.length >> 24), (byte) (bytes.length >> 16), (byte) (bytes.length >> 8), (byte) (bytes.length)};
-        lock.lock();
-        try {
-            outputStream.write(lengthBytes);
-            outputStream.write(bytes);
+        into.putInt(bytes.length);
+        into.put(bytes);
+    }
 
-            if (requiresConfirmation()) {
-                gameInputConfirmationStream.readNBytes(256);
-            }
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * Writes the opcode and arguments, prefixed with their length as a big-endian int32.
+     * Apart from file names, this doesn't allocate.
+     */
+    default void encodeBinary(ByteBuffer into) {
+        var start = into.position();
+        into.putInt(0);
+        into.put(getOpcode());
+        writeArguments(into);
+        into.putInt(start, into.position() - start - 4);
     }
 
     record Stop() implements Command {
@@ -42,6 +56,11 @@ public interface Command {
         public String getId() {
             return "Stop";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x01;
+        }
     }
 
     record Pause() implements Command {
@@ -49,6 +68,11 @@ public interface Command {
         public String getId() {
             return "Pause";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x02;
+        }
     }
 
     record Resume() implements Command {
@@ -56,6 +80,11 @@ public interface Command {
         public String getId() {
             return "Resume";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x03;
+        }
     }
 
     record ActivateInput(int input, double value) implements Command {
@@ -64,6 +93,17 @@ public interface Command {
             return "ActivateInput";
         }
 
+        @Override
+        public byte getOpcode() {
+            return 0x04;
+        }
+
+        @Override
+        public void writeArguments(ByteBuffer into) {
+            into.putInt(input);
+            into.putDouble(value);
+        }
+
         @Override
         public String getArguments() {
             return input + " " + value;
@@ -76,6 +116,16 @@ public interface Command {
             return "DeactivateInput";
         }
 
+        @Override
+        public byte getOpcode() {
+            return 0x05;
+        }
+
+        @Override
+        public void writeArguments(ByteBuffer into) {
+            into.putInt(input);
+        }
+
         @Override
         public String getArguments() {
             return String.valueOf(input);
@@ -87,6 +137,11 @@ public interface Command {
         public String getId() {
             return "ResetInput";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x06;
+        }
     }
 
     record SaveGameSave() implements Command {
@@ -94,6 +149,11 @@ public interface Command {
         public String getId() {
             return "SaveGameSave";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x07;
+        }
     }
 
     record LoadGameSave() implements Command {
@@ -101,6 +161,11 @@ public interface Command {
         public String getId() {
             return "LoadGameSave";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x08;
+        }
     }
 
     record SaveState(String fileName) implements Command {
@@ -109,6 +174,16 @@ public interface Command {
             return "SaveState";
         }
 
+        @Override
+        public byte getOpcode() {
+            return 0x09;
+        }
+
+        @Override
+        public void writeArguments(ByteBuffer into) {
+            putString(into, fileName);
+        }
+
         @Override
         public String getArguments() {
             return fileName;
@@ -126,6 +201,16 @@ public interface Command {
             return "LoadState";
         }
 
+        @Override
+        public byte getOpcode() {
+            return 0x0A;
+        }
+
+        @Override
+        public void writeArguments(ByteBuffer into) {
+            putString(into, fileName);
+        }
+
         @Override
         public String getArguments() {
             return fileName;
@@ -142,6 +227,11 @@ public interface Command {
         public String getId() {
             return "AddCheat";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x0B;
+        }
     }
 
     record ResetCheats() implements Command {
@@ -149,6 +239,11 @@ public interface Command {
         public String getId() {
             return "ResetCheats";
         }
+
+        @Override
+        public byte getOpcode() {
+            return 0x0C;
+        }
     }
 
     record SetSpeed(double speed) implements Command {
@@ -157,9 +252,25 @@ public interface Command {
             return "SetSpeed";
         }
 
+        @Override
+        public byte getOpcode() {
+            return 0x0D;
+        }
+
+        @Override
+        public void writeArguments(ByteBuffer into) {
+            into.putDouble(speed);
+        }
+
         @Override
         public String getArguments() {
             return String.valueOf(speed);
         }
     }
+
+    private static void putString(ByteBuffer into, String string) {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        into.putShort((short) bytes.length);
+        into.put(bytes);
+    }
 }
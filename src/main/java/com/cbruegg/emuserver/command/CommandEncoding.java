@@ -0,0 +1,25 @@
+package com.cbruegg.emuserver.command;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How {@link Command}s are written to the input socket of melonDS. Builds of melonDS that understand
+ * {@link #BINARY} announce it on startup, all others get {@link #TEXT}.
+ */
+public enum CommandEncoding {
+    /**
+     * {@link Command#serialize()} as UTF-8.
+     */
+    TEXT,
+    /**
+     * A one byte opcode followed by fixed-width arguments, see {@link Command#writeArguments}.
+     */
+    BINARY;
+
+    public void encode(Command command, ByteBuffer into) {
+        switch (this) {
+            case TEXT -> command.encodeText(into);
+            case BINARY -> command.encodeBinary(into);
+        }
+    }
+}
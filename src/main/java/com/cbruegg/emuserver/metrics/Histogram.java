@@ -0,0 +1,55 @@
+package com.cbruegg.emuserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Distribution of values over fixed buckets. Values may be observed from any thread without locking.
+ */
+public final class Histogram {
+
+    private final double[] upperBounds;
+    // One more than there are bounds, for values above the last one
+    private final AtomicLongArray buckets;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * @param upperBounds inclusive upper bound of each bucket, in ascending order
+     */
+    Histogram(double[] upperBounds) {
+        this.upperBounds = upperBounds.clone();
+        this.buckets = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    public void observe(double value) {
+        var bucket = 0;
+        while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        sum.add(value);
+    }
+
+    public void observeNanos(long nanos) {
+        observe(nanos / 1e9);
+    }
+
+    double[] getUpperBounds() {
+        return upperBounds;
+    }
+
+    /**
+     * @return the number of values in each bucket, not cumulative, the last one being for values above all bounds
+     */
+    long[] getBucketCounts() {
+        var counts = new long[buckets.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+
+    double getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,23 @@
+package com.cbruegg.emuserver.metrics;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Gauges of the threads and memory of this JVM.
+ */
+public final class JvmMetrics {
+
+    private JvmMetrics() {
+    }
+
+    public static void register(MetricsRegistry registry) {
+        var threads = ManagementFactory.getThreadMXBean();
+        var memory = ManagementFactory.getMemoryMXBean();
+        registry.gauge("jvm_threads_live", "Live threads, including daemon threads.", threads::getThreadCount);
+        registry.gauge("jvm_threads_daemon", "Live daemon threads.", threads::getDaemonThreadCount);
+        registry.gauge("jvm_memory_heap_used_bytes", "Used heap memory.", () -> memory.getHeapMemoryUsage().getUsed());
+        registry.gauge("jvm_memory_heap_committed_bytes", "Heap memory committed by the JVM.", () -> memory.getHeapMemoryUsage().getCommitted());
+        registry.gauge("jvm_memory_heap_max_bytes", "Maximum heap memory, or -1 if undefined.", () -> memory.getHeapMemoryUsage().getMax());
+        registry.gauge("jvm_memory_nonheap_used_bytes", "Used non-heap memory.", () -> memory.getNonHeapMemoryUsage().getUsed());
+    }
+}
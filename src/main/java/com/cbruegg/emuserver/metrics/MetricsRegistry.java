@@ -0,0 +1,146 @@
+package com.cbruegg.emuserver.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, gauges and histograms, each of which may have any number of series that differ by their labels.
+ * Metrics are registered and updated from any thread and rendered in the text format of Prometheus.
+ * <p>
+ * Labels are passed as alternating names and values, e.g. {@code counter("frames_total", "...", "session", id)}.
+ */
+public final class MetricsRegistry {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+    }
+
+    private record Family(String name, String help, Type type, Map<String, Object> series) {
+    }
+
+    // Sorted, so every scrape lists the metrics in the same order
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).series().computeIfAbsent(labelsOf(labels), l -> new Counter());
+    }
+
+    /**
+     * @param upperBounds inclusive upper bound of each bucket, in ascending order
+     */
+    public Histogram histogram(String name, String help, double[] upperBounds, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).series().computeIfAbsent(labelsOf(labels), l -> new Histogram(upperBounds));
+    }
+
+    /**
+     * @param value read on every scrape, from the thread that renders the metrics
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).series().put(labelsOf(labels), value);
+    }
+
+    /**
+     * Removes every series that has the label, e.g. all metrics of a session that has been stopped.
+     */
+    public void unregister(String labelName, String labelValue) {
+        var label = labelsOf(new String[]{labelName, labelValue});
+        for (Family family : families.values()) {
+            family.series().keySet().removeIf(labels -> labels.equals(label)
+                    || labels.startsWith(label + ",")
+                    || labels.contains("," + label + ",")
+                    || labels.endsWith("," + label));
+        }
+    }
+
+    private Family family(String name, String help, Type type) {
+        var family = families.computeIfAbsent(name, n -> new Family(n, help, type, new ConcurrentSkipListMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type().name + ", not a " + type.name);
+        }
+        return family;
+    }
+
+    public String scrape() {
+        var text = new StringBuilder();
+        for (Family family : families.values()) {
+            if (family.series().isEmpty()) {
+                continue;
+            }
+            text.append("# HELP ").append(family.name()).append(' ').append(escapeHelp(family.help())).append('\n');
+            text.append("# TYPE ").append(family.name()).append(' ').append(family.type().name).append('\n');
+            for (Map.Entry<String, Object> series : family.series().entrySet()) {
+                var labels = series.getKey();
+                switch (family.type()) {
+                    case COUNTER -> appendSample(text, family.name(), labels, ((Counter) series.getValue()).get());
+                    case GAUGE -> appendSample(text, family.name(), labels, ((DoubleSupplier) series.getValue()).getAsDouble());
+                    case HISTOGRAM -> appendHistogram(text, family.name(), labels, (Histogram) series.getValue());
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    private static void appendHistogram(StringBuilder text, String name, String labels, Histogram histogram) {
+        var upperBounds = histogram.getUpperBounds();
+        var counts = histogram.getBucketCounts();
+        var separator = labels.isEmpty() ? "" : labels + ",";
+        var cumulative = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            var bound = i < upperBounds.length ? formatValue(upperBounds[i]) : "+Inf";
+            appendSample(text, name + "_bucket", separator + "le=\"" + bound + "\"", cumulative);
+        }
+        appendSample(text, name + "_sum", labels, histogram.getSum());
+        appendSample(text, name + "_count", labels, cumulative);
+    }
+
+    private static void appendSample(StringBuilder text, String name, String labels, double value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        } else if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    private static String labelsOf(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be pairs of names and values!");
+        }
+        var text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(escapeLabelValue(labels[i + 1])).append('"');
+        }
+        return text.toString();
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,87 @@
+package com.cbruegg.emuserver.metrics;
+
+import java.util.UUID;
+
+/**
+ * Metrics of one session, labelled with its UUID. Every method may be called from any thread.
+ */
+public final class SessionMetrics implements AutoCloseable {
+
+    public enum Socket {
+        VIDEO("video"), AUDIO("audio"), SAVE_GAME("savegame");
+
+        private final String label;
+
+        Socket(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final String SESSION_LABEL = "session";
+    // Most frames take a few milliseconds, the top buckets show stalls
+    private static final double[] ENCODE_SECONDS_BOUNDS = {0.001, 0.002, 0.004, 0.008, 0.016, 0.032, 0.064, 0.128, 0.256};
+
+    private final MetricsRegistry registry;
+    private final String session;
+    private final Counter framesRead;
+    private final Counter framesEncoded;
+    private final Histogram encodeSeconds;
+    private final Counter[] bytesSent = new Counter[Socket.values().length];
+    private final Counter inputCommands;
+    private final Counter saveGamesSent;
+    private final Counter saveGamesUploaded;
+
+    public SessionMetrics(MetricsRegistry registry, UUID sessionId) {
+        this.registry = registry;
+        this.session = sessionId.toString();
+        framesRead = registry.counter("emuserver_video_frames_read_total",
+                "Frames read from the emulator.", SESSION_LABEL, session);
+        framesEncoded = registry.counter("emuserver_video_frames_encoded_total",
+                "Frames encoded for at least one viewer.", SESSION_LABEL, session);
+        encodeSeconds = registry.histogram("emuserver_video_frame_encode_seconds",
+                "Time to encode a frame for all viewers.", ENCODE_SECONDS_BOUNDS, SESSION_LABEL, session);
+        for (Socket socket : Socket.values()) {
+            bytesSent[socket.ordinal()] = registry.counter("emuserver_sent_bytes_total",
+                    "Bytes written to the clients of a session.", SESSION_LABEL, session, "socket", socket.label);
+        }
+        inputCommands = registry.counter("emuserver_input_commands_total",
+                "Input messages forwarded to the emulator.", SESSION_LABEL, session);
+        saveGamesSent = registry.counter("emuserver_savegame_syncs_total",
+                "Save games synchronized between the emulator and the client.", SESSION_LABEL, session, "direction", "download");
+        saveGamesUploaded = registry.counter("emuserver_savegame_syncs_total",
+                "Save games synchronized between the emulator and the client.", SESSION_LABEL, session, "direction", "upload");
+    }
+
+    public void onFrameRead() {
+        framesRead.increment();
+    }
+
+    public void onFrameEncoded(long encodeNanos) {
+        framesEncoded.increment();
+        encodeSeconds.observeNanos(encodeNanos);
+    }
+
+    public void onBytesSent(Socket socket, int bytes) {
+        bytesSent[socket.ordinal()].add(bytes);
+    }
+
+    public void onInputCommand() {
+        inputCommands.increment();
+    }
+
+    public void onSaveGameSent() {
+        saveGamesSent.increment();
+    }
+
+    public void onSaveGameUploaded() {
+        saveGamesUploaded.increment();
+    }
+
+    /**
+     * Removes the metrics of the session from the registry.
+     */
+    @Override
+    public void close() {
+        registry.unregister(SESSION_LABEL, session);
+    }
+}
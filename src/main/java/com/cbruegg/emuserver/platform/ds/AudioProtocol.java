@@ -0,0 +1,64 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.utils.ClientConnection;
+import com.cbruegg.emuserver.utils.Handshake;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire formats of the audio socket, negotiated through a {@link Handshake} with the magic {@code EMUA}.
+ */
+public enum AudioProtocol {
+    /**
+     * The chunks of melonDS as they are: the size as a little-endian int32, followed by signed 16-bit little-endian
+     * stereo PCM. Spoken to clients that don't send a hello.
+     */
+    PCM(1),
+    /**
+     * The same chunks compressed to a quarter of their size, see {@link ImaAdpcmEncoder}.
+     */
+    IMA_ADPCM(2);
+
+    private static final byte[] MAGIC = "EMUA".getBytes(StandardCharsets.US_ASCII);
+
+    private final int version;
+
+    AudioProtocol(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Determines the protocol to speak on a freshly accepted connection. Unknown versions fall back to {@link #PCM}.
+     */
+    public static void negotiate(Vertx vertx, ClientConnection connection, Handler<AsyncResult<AudioProtocol>> handler) {
+        Handshake.readClientVersion(vertx, connection, MAGIC, hello -> {
+            if (hello.failed()) {
+                handler.handle(Future.failedFuture(hello.cause()));
+                return;
+            }
+
+            var requestedVersion = hello.result().version();
+            var protocol = fromVersion(requestedVersion);
+            if (requestedVersion != Handshake.NO_HELLO) {
+                Handshake.writeServerVersion(connection, MAGIC, protocol.version);
+            }
+            handler.handle(Future.succeededFuture(protocol));
+        });
+    }
+
+    /**
+     * @return the protocol with the version, or {@link #PCM} if it is unknown
+     */
+    public static AudioProtocol fromVersion(int version) {
+        for (AudioProtocol candidate : values()) {
+            if (candidate.version == version) {
+                return candidate;
+            }
+        }
+        return PCM;
+    }
+}
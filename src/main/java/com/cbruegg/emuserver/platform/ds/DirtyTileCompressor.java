@@ -0,0 +1,170 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.cbruegg.emuserver.platform.ds.JpegCompressor.*;
+
+/**
+ * Video encoder for {@link VideoProtocol#DIRTY_TILES}. Frames are hashed in tiles of {@link #TILE_SIZE} pixels.
+ * Frames without changes are not sent at all, frames with few changes only carry JPEGs of the changed regions.
+ * <p>
+ * Each message has the following layout, with all integers in big-endian byte order:
+ * <pre>
+ * int32   length of the rest of the message
+ * uint8   type, {@link #MESSAGE_FULL_FRAME} or {@link #MESSAGE_DELTA_FRAME}
+ * int32   frame number, counting all emulator frames including skipped ones
+ *
+ * full frame:
+ * byte[]  JPEG of both screens
+ *
+ * delta frame:
+ * uint16  number of regions, each consisting of
+ *         uint16 x, uint16 y, uint16 width, uint16 height, in pixels
+ *         int32  JPEG length
+ *         byte[] JPEG of the region, to be drawn over the previous frame
+ * </pre>
+ * A full frame is sent for the first frame, when requested, at least every {@code keyframeInterval} frames,
+ * and whenever more than half of the tiles changed.
+ */
+public class DirtyTileCompressor implements VideoEncoder {
+
+    static final int TILE_SIZE = 16;
+    static final byte MESSAGE_FULL_FRAME = 0;
+    static final byte MESSAGE_DELTA_FRAME = 1;
+
+    private final byte[] frame;
+    private final int keyframeInterval;
+    private final JpegEncoder jpegEncoder;
+    private final BufferedImage frameImage;
+    private final TileHasher tileHasher = new TileHasher(SINGLE_SCREEN_HEIGHT * 2, TILE_SIZE);
+    private final DirtyRegions regions = new DirtyRegions(tileHasher);
+    private final Rectangle region = new Rectangle();
+    private final ByteArrayOutputStream messageBuffer = new ByteArrayOutputStream(FRAME_SIZE_BYTES);
+    private final DataOutputStream message = new DataOutputStream(messageBuffer);
+    private final byte[] sizeBuf = new byte[4];
+    private final AtomicBoolean keyframeRequested = new AtomicBoolean(true);
+    private int framesSinceFullFrame = 0;
+
+    DirtyTileCompressor(byte[] frame, float quality, int keyframeInterval) throws IOException {
+        this.frame = frame;
+        this.keyframeInterval = keyframeInterval;
+        this.jpegEncoder = new JpegEncoder(quality, FRAME_SIZE_BYTES);
+        this.frameImage = createFrameImage(frame, 0, SINGLE_SCREEN_HEIGHT * 2);
+    }
+
+    @Override
+    public boolean encode(int frameNumber, OutputStream into) throws IOException {
+        var dirtyTiles = tileHasher.update(frame, 0);
+        framesSinceFullFrame++;
+
+        var fullFrame = keyframeRequested.getAndSet(false)
+                || framesSinceFullFrame >= keyframeInterval
+                || dirtyTiles * 2 > tileHasher.getTileCount();
+        messageBuffer.reset();
+        if (fullFrame) {
+            message.writeByte(MESSAGE_FULL_FRAME);
+            message.writeInt(frameNumber);
+            jpegEncoder.encode(frameImage, null);
+            jpegEncoder.writeTo(message);
+            framesSinceFullFrame = 0;
+        } else if (dirtyTiles > 0) {
+            regions.compute();
+            message.writeByte(MESSAGE_DELTA_FRAME);
+            message.writeInt(frameNumber);
+            message.writeShort(regions.count);
+            for (int i = 0; i < regions.count; i++) {
+                regions.get(i, region);
+                message.writeShort(region.x);
+                message.writeShort(region.y);
+                message.writeShort(region.width);
+                message.writeShort(region.height);
+                jpegEncoder.encode(frameImage, region);
+                message.writeInt(jpegEncoder.size());
+                jpegEncoder.writeTo(message);
+            }
+        }
+
+        if (messageBuffer.size() > 0) {
+            var size = messageBuffer.size();
+            sizeBuf[0] = (byte) (size >> 24);
+            sizeBuf[1] = (byte) (size >> 16);
+            sizeBuf[2] = (byte) (size >> 8);
+            sizeBuf[3] = (byte) (size);
+            into.write(sizeBuf);
+            messageBuffer.writeTo(into);
+        }
+        return fullFrame;
+    }
+
+    @Override
+    public void requestKeyframe() {
+        keyframeRequested.set(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        jpegEncoder.close();
+    }
+
+    /**
+     * Merges dirty tiles into rectangles: horizontal runs of dirty tiles within a tile row, extended downwards
+     * while the rows below have a run with the same horizontal extent.
+     */
+    private static final class DirtyRegions {
+        private final TileHasher tileHasher;
+        // In tiles: x, y, width, height
+        private final int[] rects;
+        private int count;
+
+        DirtyRegions(TileHasher tileHasher) {
+            this.tileHasher = tileHasher;
+            this.rects = new int[tileHasher.getTileCount() * 4];
+        }
+
+        void compute() {
+            count = 0;
+            for (int tileY = 0; tileY < tileHasher.getTilesY(); tileY++) {
+                var tileX = 0;
+                while (tileX < tileHasher.getTilesX()) {
+                    if (!tileHasher.isDirty(tileX, tileY)) {
+                        tileX++;
+                        continue;
+                    }
+                    var runStart = tileX;
+                    while (tileX < tileHasher.getTilesX() && tileHasher.isDirty(tileX, tileY)) {
+                        tileX++;
+                    }
+                    add(runStart, tileY, tileX - runStart);
+                }
+            }
+        }
+
+        private void add(int tileX, int tileY, int width) {
+            for (int i = 0; i < count; i++) {
+                var rect = i * 4;
+                if (rects[rect] == tileX && rects[rect + 2] == width && rects[rect + 1] + rects[rect + 3] == tileY) {
+                    rects[rect + 3]++;
+                    return;
+                }
+            }
+            var rect = count * 4;
+            rects[rect] = tileX;
+            rects[rect + 1] = tileY;
+            rects[rect + 2] = width;
+            rects[rect + 3] = 1;
+            count++;
+        }
+
+        void get(int index, Rectangle into) {
+            var tileSize = tileHasher.getTileSize();
+            var rect = index * 4;
+            into.setBounds(rects[rect] * tileSize, rects[rect + 1] * tileSize, rects[rect + 2] * tileSize, rects[rect + 3] * tileSize);
+        }
+    }
+}
@@ -1,72 +1,136 @@
 package com.cbruegg.emuserver.platform.ds;
 
+import com.cbruegg.emuserver.command.CommandEncoding;
+
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
-public class DsServerOutputReader implements AutoCloseable {
+/**
+ * Reads the output of melonDS on a thread of its own, for the ports it announces and its log. The output is scanned
+ * for line breaks in a byte buffer, and only lines that start with {@link #SERVOUT_PREFIX} are decoded, until the
+ * ports are known. All other lines go to the {@link LineListener} as bytes. The listener must not block, so melonDS
+ * never waits for its output to be read.
+ */
+public class DsServerOutputReader {
+
+    public interface LineListener {
+        /**
+         * Called on the thread of the reader. The bytes are only valid during the call.
+         *
+         * @param line the line without its line break, in {@code line[offset]} up to {@code line[offset + length]}
+         */
+        void onLine(byte[] line, int offset, int length);
+    }
 
     private static final Pattern portSpecPattern = Pattern.compile("\\[SERVOUT] (screen|audio|input): :([0-9]+)");
+    private static final Pattern commandEncodingPattern = Pattern.compile("\\[SERVOUT] commands: (text|binary)");
+    private static final byte[] SERVOUT_PREFIX = "[SERVOUT] ".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 0x2000;
+    // Longer lines are split, so the buffer doesn't grow
+    private static final int MAX_LINE_LENGTH = 0x1000;
 
-    public static record PortSpec(int screenSocketPort, int audioSocketPort, int inputSocketPort) {
+    /**
+     * @param commandEncoding {@link CommandEncoding#BINARY} if melonDS announced it before its ports
+     */
+    public static record PortSpec(int screenSocketPort, int audioSocketPort, int inputSocketPort, CommandEncoding commandEncoding) {
     }
 
-    private final Scanner serverOutputScanner;
-    private volatile OutputStream redirectTo;
+    private final InputStream serverOutput;
+    private final LineListener listener;
+    @Nullable
     private volatile PortSpec portSpec;
-    private volatile boolean stop = false;
     private final CountDownLatch portSpecSema = new CountDownLatch(1);
+    // Only used by the thread
+    private Integer screenPort = null;
+    private Integer audioPort = null;
+    private Integer inputPort = null;
+    private CommandEncoding commandEncoding = CommandEncoding.TEXT;
 
-    public DsServerOutputReader(InputStream serverOutput) {
-        this(serverOutput, System.out);
+    public DsServerOutputReader(InputStream serverOutput, LineListener listener) {
+        this.serverOutput = serverOutput;
+        this.listener = listener;
+        Thread thread = new Thread(this::read);
+        thread.setName("DsServerOutputReader");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    public DsServerOutputReader(InputStream serverOutput, OutputStream redirectTo) {
-        serverOutputScanner = new Scanner(serverOutput);
-        this.redirectTo = redirectTo;
-        Thread thread = new Thread(() -> {
-            Integer screenPort = null;
-            Integer audioPort = null;
-            Integer inputPort = null;
-            while (!stop && serverOutputScanner.hasNextLine()) {
-                var line = serverOutputScanner.nextLine();
-                if (portSpec == null) {
-                    var matcher = portSpecPattern.matcher(line);
-                    if (matcher.find()) {
-                        var port = Integer.parseInt(matcher.group(2));
-                        switch (matcher.group(1)) {
-                            case "screen" -> screenPort = port;
-                            case "audio" -> audioPort = port;
-                            case "input" -> inputPort = port;
-                        }
-                        if (screenPort != null && audioPort != null && inputPort != null) {
-                            portSpec = new PortSpec(screenPort, audioPort, inputPort);
-                            portSpecSema.countDown();
-                        }
-                    } else {
-                        redirect(line);
+    private void read() {
+        var buffer = new byte[BUFFER_SIZE];
+        var length = 0;
+        try (serverOutput) {
+            int read;
+            while ((read = serverOutput.read(buffer, length, buffer.length - length)) >= 0) {
+                var end = length + read;
+                var lineStart = 0;
+                for (int i = length; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        onLine(buffer, lineStart, i);
+                        lineStart = i + 1;
+                    } else if (i - lineStart >= MAX_LINE_LENGTH) {
+                        onLine(buffer, lineStart, i);
+                        lineStart = i;
                     }
-                } else {
-                    redirect(line);
                 }
+                System.arraycopy(buffer, lineStart, buffer, 0, end - lineStart);
+                length = end - lineStart;
             }
-        });
-        thread.setName("DsServerOutputReader");
-        thread.start();
+            if (length > 0) {
+                onLine(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            // Wakes up readPortSpec if melonDS exited before it announced its ports
+            portSpecSema.countDown();
+        }
     }
 
-    private void redirect(String line) {
-        try {
-            this.redirectTo.write((line + '\n').getBytes(StandardCharsets.UTF_8));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void onLine(byte[] buffer, int start, int end) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
         }
+        var isServerOutput = portSpec == null
+                && Arrays.equals(buffer, start, Math.min(end, start + SERVOUT_PREFIX.length), SERVOUT_PREFIX, 0, SERVOUT_PREFIX.length);
+        if (!isServerOutput || !onServerOutput(new String(buffer, start, end - start, StandardCharsets.UTF_8))) {
+            listener.onLine(buffer, start, end - start);
+        }
+    }
+
+    /**
+     * @return whether the line announced a port or the command encoding
+     */
+    private boolean onServerOutput(String line) {
+        var matcher = portSpecPattern.matcher(line);
+        var commandEncodingMatcher = commandEncodingPattern.matcher(line);
+        if (commandEncodingMatcher.find()) {
+            commandEncoding = commandEncodingMatcher.group(1).equals("binary") ? CommandEncoding.BINARY : CommandEncoding.TEXT;
+            return true;
+        } else if (matcher.find()) {
+            var port = Integer.parseInt(matcher.group(2));
+            switch (matcher.group(1)) {
+                case "screen" -> screenPort = port;
+                case "audio" -> audioPort = port;
+                case "input" -> inputPort = port;
+            }
+            if (screenPort != null && audioPort != null && inputPort != null) {
+                portSpec = new PortSpec(screenPort, audioPort, inputPort, commandEncoding);
+                portSpecSema.countDown();
+            }
+            return true;
+        }
+        return false;
     }
 
+    /**
+     * @return null if melonDS exited before it announced its ports
+     */
+    @Nullable
     public PortSpec readPortSpec() {
         while (true) {
             try {
@@ -77,14 +141,4 @@ public class DsServerOutputReader implements AutoCloseable {
         }
         return portSpec;
     }
-
-    public void setRedirectTo(OutputStream redirectTo) {
-        this.redirectTo = redirectTo;
-    }
-
-    @Override
-    public void close() throws Exception {
-        serverOutputScanner.close();
-        stop = true;
-    }
 }
@@ -0,0 +1,126 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.command.Command;
+import com.cbruegg.emuserver.command.CommandEncoding;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The input socket of melonDS. Input of clients and {@link Command}s are written on the session's context in the
+ * order they arrive, so they never interleave. melonDS confirms some commands with a message of
+ * {@link #CONFIRMATION_SIZE} bytes, in the order the commands were sent.
+ */
+public final class EmulatorInput {
+
+    private static final int CONFIRMATION_SIZE = 256;
+    private static final int INITIAL_COMMAND_BUFFER_SIZE = 256;
+
+    private final Context context;
+    private final NetSocket connection;
+    // Only accessed on the context
+    private final CommandEncoder commandEncoder;
+    private final Deque<CompletableFuture<Void>> pendingConfirmations = new ArrayDeque<>();
+    private boolean closed = false;
+
+    /**
+     * Must be called on {@code context}.
+     */
+    public EmulatorInput(Context context, NetSocket connection, CommandEncoding commandEncoding) {
+        this.context = context;
+        this.connection = connection;
+        this.commandEncoder = new CommandEncoder(commandEncoding);
+        connection.handler(RecordParser.newFixed(CONFIRMATION_SIZE, confirmation -> {
+            var pendingConfirmation = pendingConfirmations.poll();
+            if (pendingConfirmation != null) {
+                pendingConfirmation.complete(null);
+            }
+        }));
+        connection.exceptionHandler(Throwable::printStackTrace);
+        connection.closeHandler(v -> {
+            closed = true;
+            CompletableFuture<Void> pendingConfirmation;
+            while ((pendingConfirmation = pendingConfirmations.poll()) != null) {
+                pendingConfirmation.completeExceptionally(new IOException("Input socket closed!"));
+            }
+        });
+    }
+
+    /**
+     * Writes raw input of a client. Must be called on the session's context.
+     *
+     * @param written called once the input has been handed to the operating system
+     */
+    public void forward(Buffer input, Handler<AsyncResult<Void>> written) {
+        if (closed) {
+            written.handle(Future.failedFuture(new IOException("Input socket closed!")));
+        } else {
+            connection.write(input, written);
+        }
+    }
+
+    /**
+     * Writes the command. May be called from any thread.
+     *
+     * @return completes once the command was written, or confirmed if it {@link Command#requiresConfirmation()}
+     */
+    public CompletableFuture<Void> send(Command command) {
+        var sent = new CompletableFuture<Void>();
+        context.runOnContext(v -> {
+            if (closed) {
+                sent.completeExceptionally(new IOException("Input socket closed!"));
+                return;
+            }
+            connection.write(commandEncoder.encode(command));
+            if (command.requiresConfirmation()) {
+                pendingConfirmations.add(sent);
+            } else {
+                sent.complete(null);
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Encodes commands into buffers that are handed to the socket as they are. Not thread-safe.
+     */
+    static final class CommandEncoder {
+
+        private final CommandEncoding encoding;
+        // Grows to fit the largest command so far
+        private int bufferSize = INITIAL_COMMAND_BUFFER_SIZE;
+
+        CommandEncoder(CommandEncoding encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * @return the command in an array of its own, since the socket holds on to it until it is written. It has a
+         * fixed capacity, so it must not be appended to.
+         */
+        Buffer encode(Command command) {
+            while (true) {
+                var bytes = new byte[bufferSize];
+                var into = ByteBuffer.wrap(bytes);
+                try {
+                    encoding.encode(command, into);
+                    return Buffer.buffer(Unpooled.wrappedBuffer(bytes, 0, into.position()));
+                } catch (BufferOverflowException e) {
+                    bufferSize *= 2;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of threads that encode video for all sessions. Once the queue is full, the submitting thread
+ * encodes by itself, which throttles the sessions instead of queueing frames without bound.
+ */
+public final class EncoderPool implements AutoCloseable {
+
+    private final ThreadPoolExecutor executor;
+
+    public EncoderPool(int threads, int queueCapacity) {
+        var threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads,
+                threads,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    var thread = new Thread(runnable);
+                    thread.setName("VideoEncoder-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,171 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reads the screen sockets of all emulators on a single selector thread. Each frame is read straight into the frame
+ * buffer of its emulator. Once a frame is complete, reading from that emulator pauses until
+ * {@link Registration#resume()} is called, so the frame buffer can be encoded in place in the meantime.
+ */
+public final class FrameReader implements AutoCloseable {
+
+    public interface Listener {
+        /**
+         * Called on the reader thread once the frame buffer holds a complete frame.
+         */
+        void onFrame();
+
+        /**
+         * Called on the reader thread once the emulator closed the socket or reading from it failed.
+         */
+        void onClosed();
+    }
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean stop = false;
+
+    public FrameReader() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::run);
+        thread.setName("FrameReader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts reading frames from {@code channel} into {@code frame}, which must be exactly one frame large.
+     */
+    public Registration register(SocketChannel channel, byte[] frame, Listener listener) throws IOException {
+        channel.configureBlocking(false);
+        var registration = new Registration(channel, ByteBuffer.wrap(frame), listener);
+        runOnReaderThread(() -> {
+            try {
+                registration.key = channel.register(selector, SelectionKey.OP_READ, registration);
+            } catch (ClosedChannelException e) {
+                listener.onClosed();
+            }
+        });
+        return registration;
+    }
+
+    private void run() {
+        try (selector) {
+            while (!stop) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    // The thread is shared by all sessions, so one failing must not stop the others
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Frame reader task failed!");
+                        e.printStackTrace();
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    // Closed by one of the tasks since it was selected
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    var registration = (Registration) key.attachment();
+                    try {
+                        registration.read();
+                    } catch (RuntimeException e) {
+                        System.err.println("Video stream error!");
+                        e.printStackTrace();
+                        registration.closeChannel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.err.println("Frame reader error!");
+            e.printStackTrace();
+        }
+    }
+
+    private void runOnReaderThread(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    public final class Registration implements AutoCloseable {
+        private final SocketChannel channel;
+        private final ByteBuffer frame;
+        private final Listener listener;
+        private SelectionKey key;
+
+        private Registration(SocketChannel channel, ByteBuffer frame, Listener listener) {
+            this.channel = channel;
+            this.frame = frame;
+            this.listener = listener;
+        }
+
+        private void read() {
+            try {
+                int read;
+                do {
+                    read = channel.read(frame);
+                } while (read > 0 && frame.hasRemaining());
+
+                if (read < 0) {
+                    closeChannel();
+                    listener.onClosed();
+                } else if (!frame.hasRemaining()) {
+                    key.interestOps(0);
+                    frame.clear();
+                    listener.onFrame();
+                }
+            } catch (IOException e) {
+                System.err.println("Video stream error!");
+                e.printStackTrace();
+                closeChannel();
+                listener.onClosed();
+            }
+        }
+
+        /**
+         * Reads the next frame into the frame buffer. May be called from any thread.
+         */
+        public void resume() {
+            runOnReaderThread(() -> {
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            });
+        }
+
+        /**
+         * Stops reading and closes the socket. May be called from any thread.
+         */
+        @Override
+        public void close() {
+            runOnReaderThread(this::closeChannel);
+        }
+
+        private void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
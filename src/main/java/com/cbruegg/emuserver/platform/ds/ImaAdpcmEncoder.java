@@ -0,0 +1,129 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Encodes the signed 16-bit little-endian stereo PCM of melonDS to IMA-ADPCM for {@link AudioProtocol#IMA_ADPCM},
+ * which takes a quarter of the size. The state of the encoder carries over from one chunk to the next, but every
+ * message starts with the state, so each message can be decoded on its own.
+ * <p>
+ * Each message has the following layout, with all integers in little-endian byte order like the PCM of melonDS:
+ * <pre>
+ * int32   length of the rest of the message
+ * int16   predictor of the left channel before the first sample
+ * uint8   step index of the left channel before the first sample
+ * uint8   0
+ * int16   predictor of the right channel before the first sample
+ * uint8   step index of the right channel before the first sample
+ * uint8   0
+ * byte[]  one byte per stereo sample, with the left channel in the low nibble and the right channel in the high one
+ * </pre>
+ */
+public final class ImaAdpcmEncoder {
+
+    private static final int CHANNELS = 2;
+    private static final int BYTES_PER_PCM_FRAME = CHANNELS * Short.BYTES;
+    private static final int HEADER_SIZE = 4 + CHANNELS * 4;
+
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private final int[] predictors = new int[CHANNELS];
+    private final int[] stepIndices = new int[CHANNELS];
+    private byte[] message;
+
+    /**
+     * @param expectedPcmSize typical size of a PCM chunk in bytes, so the message buffer rarely has to grow
+     */
+    public ImaAdpcmEncoder(int expectedPcmSize) {
+        this.message = new byte[getMessageSize(expectedPcmSize)];
+    }
+
+    /**
+     * @return the size of the message that a chunk of {@code pcmSize} bytes is encoded to
+     */
+    public static int getMessageSize(int pcmSize) {
+        return HEADER_SIZE + pcmSize / BYTES_PER_PCM_FRAME;
+    }
+
+    /**
+     * Encodes one chunk of PCM and appends the message to {@code into}, e.g. the buffer that is going to be written.
+     * Incomplete stereo samples at the end of the chunk are dropped. The message is built in an array that the
+     * encoder reuses, so nothing is allocated unless a chunk is larger than all before.
+     *
+     * @return {@code into}
+     */
+    public Buffer encode(Buffer pcm, Buffer into) {
+        var pcmFrames = pcm.length() / BYTES_PER_PCM_FRAME;
+        var size = HEADER_SIZE + pcmFrames;
+        if (message.length < size) {
+            message = new byte[size];
+        }
+
+        writeIntLE(message, 0, size - 4);
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            var position = 4 + channel * 4;
+            message[position] = (byte) predictors[channel];
+            message[position + 1] = (byte) (predictors[channel] >> 8);
+            message[position + 2] = (byte) stepIndices[channel];
+            message[position + 3] = 0;
+        }
+
+        var position = HEADER_SIZE;
+        for (int frame = 0; frame < pcmFrames; frame++) {
+            var pcmPosition = frame * BYTES_PER_PCM_FRAME;
+            var left = encodeSample(0, pcm.getShortLE(pcmPosition));
+            var right = encodeSample(1, pcm.getShortLE(pcmPosition + Short.BYTES));
+            message[position++] = (byte) (left | (right << 4));
+        }
+        return into.appendBytes(message, 0, size);
+    }
+
+    private int encodeSample(int channel, int sample) {
+        var predictor = predictors[channel];
+        var stepIndex = stepIndices[channel];
+        var step = STEP_TABLE[stepIndex];
+
+        var diff = sample - predictor;
+        var nibble = 0;
+        if (diff < 0) {
+            nibble = 8;
+            diff = -diff;
+        }
+        var delta = step >> 3;
+        if (diff >= step) {
+            nibble |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 1;
+            delta += step;
+        }
+
+        predictor += (nibble & 8) != 0 ? -delta : delta;
+        predictors[channel] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+        stepIndices[channel] = Math.max(0, Math.min(STEP_TABLE.length - 1, stepIndex + INDEX_TABLE[nibble & 7]));
+        return nibble;
+    }
+
+    private static void writeIntLE(byte[] into, int offset, int value) {
+        into[offset] = (byte) value;
+        into[offset + 1] = (byte) (value >> 8);
+        into[offset + 2] = (byte) (value >> 16);
+        into[offset + 3] = (byte) (value >> 24);
+    }
+}
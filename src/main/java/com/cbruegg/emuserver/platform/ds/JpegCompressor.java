@@ -1,72 +1,102 @@
 package com.cbruegg.emuserver.platform.ds;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.Channels;
 
-public class JpegCompressor {
+/**
+ * Video encoder for {@link VideoProtocol#JPEG}. Every frame is sent as a JPEG of both screens,
+ * prefixed with its length as a big-endian int32.
+ */
+public class JpegCompressor implements VideoEncoder {
 
-    private static final int SINGLE_SCREEN_WIDTH = 256;
-    private static final int SINGLE_SCREEN_HEIGHT = 192;
-    private static final int SINGLE_SCREEN_SIZE_BYTES = SINGLE_SCREEN_WIDTH * SINGLE_SCREEN_HEIGHT * 4;
+    static final int SINGLE_SCREEN_WIDTH = 256;
+    static final int SINGLE_SCREEN_HEIGHT = 192;
+    static final int BYTES_PER_PIXEL = 4;
+    static final int SINGLE_SCREEN_SIZE_BYTES = SINGLE_SCREEN_WIDTH * SINGLE_SCREEN_HEIGHT * BYTES_PER_PIXEL;
+    static final int FRAME_SIZE_BYTES = SINGLE_SCREEN_SIZE_BYTES * 2;
 
-    private JpegCompressor() {
+    // melonDS sends little-endian 0xAARRGGBB pixels, so each pixel is laid out as B, G, R, A in memory
+    private static final int[] BGRX_BAND_OFFSETS = {2, 1, 0};
+
+    private final JpegEncoder jpegEncoder;
+    private final BufferedImage frameImage;
+    private final byte[] sizeBuf = new byte[4];
+
+    /**
+     * @param frame the frame buffer. It is read in place, so there are no intermediate copies.
+     */
+    JpegCompressor(byte[] frame, float quality) throws IOException {
+        this.jpegEncoder = new JpegEncoder(quality, FRAME_SIZE_BYTES);
+        this.frameImage = createFrameImage(frame, 0, SINGLE_SCREEN_HEIGHT * 2);
     }
 
-    public static void compress(InputStream from, OutputStream into) throws IOException {
-        var jpegParams = new JPEGImageWriteParam(null);
-        jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-        jpegParams.setCompressionQuality(0.95f);
-        var jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
-        try (var jpegOutputBuffer = new ByteArrayOutputStream(SINGLE_SCREEN_SIZE_BYTES * 2);
-             var imageOutputStream = ImageIO.createImageOutputStream(jpegOutputBuffer);
-             var fromChannel = Channels.newChannel(from)) {
-            if (imageOutputStream == null) {
-                throw new IOException("Can't create an ImageOutputStream!");
-            }
-            jpegWriter.setOutput(imageOutputStream);
+    @Override
+    public boolean encode(int frameNumber, OutputStream into) throws IOException {
+        jpegEncoder.encode(frameImage, null);
 
-            var imageBuffer = ByteBuffer.allocateDirect(SINGLE_SCREEN_SIZE_BYTES * 2).order(ByteOrder.LITTLE_ENDIAN);
-            var imageIntBuffer = imageBuffer.asIntBuffer();
-            var imageIntArray = new int[imageIntBuffer.remaining()];
-            // TYPE_INT_RGB ust ignores alpha
-            var bufferedImage = new BufferedImage(SINGLE_SCREEN_WIDTH, SINGLE_SCREEN_HEIGHT * 2, BufferedImage.TYPE_INT_BGR);
-            var iioImage = new IIOImage(bufferedImage, null, null);
+        var size = jpegEncoder.size();
+        sizeBuf[0] = (byte) (size >> 24);
+        sizeBuf[1] = (byte) (size >> 16);
+        sizeBuf[2] = (byte) (size >> 8);
+        sizeBuf[3] = (byte) (size);
+        into.write(sizeBuf);
+        jpegEncoder.writeTo(into);
+        return true;
+    }
 
-            var sizeBuf = new byte[4];
-            while (fromChannel.read(imageBuffer) >= 0) {
-                if (!imageBuffer.hasRemaining()) {
-                    imageIntBuffer.get(imageIntArray);
-                    bufferedImage.setRGB(0, 0, SINGLE_SCREEN_WIDTH, SINGLE_SCREEN_HEIGHT * 2, imageIntArray, 0, SINGLE_SCREEN_WIDTH);
-                    jpegWriter.write(null, iioImage, jpegParams);
+    @Override
+    public void requestKeyframe() {
+        // Every frame is a keyframe
+    }
 
-                    var size = jpegOutputBuffer.size();
-                    sizeBuf[0] = (byte) (size >> 24);
-                    sizeBuf[1] = (byte) (size >> 16);
-                    sizeBuf[2] = (byte) (size >> 8);
-                    sizeBuf[3] = (byte) (size);
-                    into.write(sizeBuf);
-                    into.flush();
-                    jpegOutputBuffer.writeTo(into);
-                    into.flush();
+    @Override
+    public void close() throws IOException {
+        jpegEncoder.close();
+    }
+
+    /**
+     * Reads exactly one frame of both screens into {@code frame}.
+     *
+     * @return false if the stream ended before a full frame could be read
+     */
+    static boolean readFrame(InputStream from, byte[] frame) throws IOException {
+        return from.readNBytes(frame, 0, FRAME_SIZE_BYTES) == FRAME_SIZE_BYTES;
+    }
 
-                    jpegOutputBuffer.reset();
-                    imageIntBuffer.clear();
-                    imageBuffer.clear();
-                }
-            }
-        } finally {
-            jpegWriter.dispose();
+    /**
+     * Creates an image that is backed by {@code pixels} without copying them. Changes to the array
+     * are immediately visible to the image. The alpha byte of each pixel is ignored.
+     *
+     * @param offset offset of the first pixel in {@code pixels}, in bytes
+     * @param height number of screen lines, each {@link #SINGLE_SCREEN_WIDTH} pixels wide
+     */
+    static BufferedImage createFrameImage(byte[] pixels, int offset, int height) {
+        // Interleaved rasters ignore the offset of the DataBuffer, so it needs to be part of the band offsets
+        var bandOffsets = new int[BGRX_BAND_OFFSETS.length];
+        for (int i = 0; i < bandOffsets.length; i++) {
+            bandOffsets[i] = offset + BGRX_BAND_OFFSETS[i];
         }
+        var raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length),
+                SINGLE_SCREEN_WIDTH,
+                height,
+                SINGLE_SCREEN_WIDTH * BYTES_PER_PIXEL,
+                BYTES_PER_PIXEL,
+                bandOffsets,
+                null);
+        var colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                false,
+                false,
+                Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
 }
@@ -0,0 +1,63 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import javax.annotation.Nullable;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reusable JPEG writer with its own output buffer. Each call to {@link #encode} replaces the previous output.
+ */
+final class JpegEncoder implements AutoCloseable {
+
+    private final ImageWriter jpegWriter = ImageIO.getImageWritersByFormatName("jpg").next();
+    private final JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
+    private final ByteArrayOutputStream jpegOutputBuffer;
+    private final ImageOutputStream imageOutputStream;
+
+    JpegEncoder(float quality, int initialBufferSize) throws IOException {
+        jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        jpegParams.setCompressionQuality(quality);
+        jpegOutputBuffer = new ByteArrayOutputStream(initialBufferSize);
+        imageOutputStream = ImageIO.createImageOutputStream(jpegOutputBuffer);
+        if (imageOutputStream == null) {
+            jpegWriter.dispose();
+            throw new IOException("Can't create an ImageOutputStream!");
+        }
+        jpegWriter.setOutput(imageOutputStream);
+    }
+
+    /**
+     * @param region the part of the image to encode, or null to encode all of it
+     */
+    void encode(BufferedImage image, @Nullable Rectangle region) throws IOException {
+        jpegOutputBuffer.reset();
+        jpegParams.setSourceRegion(region);
+        jpegWriter.write(null, new IIOImage(image, null, null), jpegParams);
+    }
+
+    int size() {
+        return jpegOutputBuffer.size();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        jpegOutputBuffer.writeTo(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            imageOutputStream.close();
+        } finally {
+            jpegWriter.dispose();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.utils.LatencyHistogram;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Traces input events of one session until they reach a viewer. Each input gets a sequence number and a monotonic
+ * timestamp ({@link System#nanoTime()}) when it is received from a client and when it has been forwarded to melonDS.
+ * The first frame melonDS finishes after that is the first one that can show the effect of the input. It gets
+ * timestamps when it has been read, encoded and flushed to the first viewer.
+ * <p>
+ * Frames that are not encoded or not sent, e.g. because nobody watches, pass their inputs on to the next frame.
+ * All methods but {@link #snapshot()} must be called on the session's context.
+ */
+public final class LatencyTracer {
+
+    /**
+     * Timestamps of one input event and the frame that showed it first, in nanoseconds of {@link System#nanoTime()}.
+     */
+    public record Trace(long inputSequence,
+                        int frameNumber,
+                        long receivedNanos,
+                        long forwardedNanos,
+                        long frameReadNanos,
+                        long encodedNanos,
+                        long flushedNanos) {
+    }
+
+    public record Snapshot(LatencyHistogram.Snapshot receivedToForwarded,
+                           LatencyHistogram.Snapshot forwardedToFrameRead,
+                           LatencyHistogram.Snapshot frameReadToEncoded,
+                           LatencyHistogram.Snapshot encodedToFlushed,
+                           LatencyHistogram.Snapshot inputToPhoton,
+                           List<Trace> recentTraces) {
+    }
+
+    public static final class InputTrace {
+        private final long sequence;
+        private final long receivedNanos;
+        private long forwardedNanos;
+
+        private InputTrace(long sequence, long receivedNanos) {
+            this.sequence = sequence;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    private static final class FrameTrace {
+        final int frameNumber;
+        final long readNanos;
+        final List<InputTrace> inputs;
+        long encodedNanos = -1;
+
+        FrameTrace(int frameNumber, long readNanos, List<InputTrace> inputs) {
+            this.frameNumber = frameNumber;
+            this.readNanos = readNanos;
+            this.inputs = inputs;
+        }
+    }
+
+    // Bound memory while inputs arrive but no frames are sent
+    private static final int MAX_PENDING_INPUTS = 256;
+    private static final int MAX_PENDING_FRAMES = 64;
+    private static final int RECENT_TRACES = 16;
+
+    private final LatencyHistogram receivedToForwarded = new LatencyHistogram();
+    private final LatencyHistogram forwardedToFrameRead = new LatencyHistogram();
+    private final LatencyHistogram frameReadToEncoded = new LatencyHistogram();
+    private final LatencyHistogram encodedToFlushed = new LatencyHistogram();
+    private final LatencyHistogram inputToPhoton = new LatencyHistogram();
+    // Guarded by its monitor, as it is also read by snapshot()
+    private final Deque<Trace> recentTraces = new ArrayDeque<>(RECENT_TRACES);
+    private final Deque<InputTrace> forwardedInputs = new ArrayDeque<>();
+    private final Deque<FrameTrace> pendingFrames = new ArrayDeque<>();
+    private long nextInputSequence = 0;
+
+    public InputTrace onInputReceived(long now) {
+        return new InputTrace(nextInputSequence++, now);
+    }
+
+    public void onInputForwarded(InputTrace input, long now) {
+        input.forwardedNanos = now;
+        receivedToForwarded.record(now - input.receivedNanos);
+        forwardedInputs.add(input);
+        if (forwardedInputs.size() > MAX_PENDING_INPUTS) {
+            forwardedInputs.poll();
+        }
+    }
+
+    void onFrameRead(int frameNumber, long now) {
+        // Inputs whose forwarding is reported after the frame was complete can't be part of it
+        var inputs = new ArrayList<InputTrace>();
+        while (!forwardedInputs.isEmpty() && forwardedInputs.peek().forwardedNanos <= now) {
+            inputs.add(forwardedInputs.poll());
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+        pendingFrames.add(new FrameTrace(frameNumber, now, inputs));
+        if (pendingFrames.size() > MAX_PENDING_FRAMES) {
+            pendingFrames.poll();
+        }
+    }
+
+    /**
+     * The frame won't be sent, so its inputs are going to be shown by the next frame.
+     */
+    void onFrameSkipped(int frameNumber) {
+        var frame = pendingFrames.peekLast();
+        if (frame == null || frame.frameNumber != frameNumber) {
+            return;
+        }
+        pendingFrames.pollLast();
+        for (int i = frame.inputs.size() - 1; i >= 0; i--) {
+            forwardedInputs.addFirst(frame.inputs.get(i));
+        }
+    }
+
+    void onFrameEncoded(int frameNumber, long now) {
+        var frame = pendingFrames.peekLast();
+        if (frame != null && frame.frameNumber == frameNumber) {
+            frame.encodedNanos = now;
+        }
+    }
+
+    /**
+     * Completes the traces of this frame and all earlier ones.
+     */
+    void onFrameFlushed(int frameNumber, long now) {
+        FrameTrace frame;
+        while ((frame = pendingFrames.peek()) != null && frame.frameNumber <= frameNumber && frame.encodedNanos >= 0) {
+            pendingFrames.poll();
+            frameReadToEncoded.record(frame.encodedNanos - frame.readNanos);
+            encodedToFlushed.record(now - frame.encodedNanos);
+            for (InputTrace input : frame.inputs) {
+                forwardedToFrameRead.record(frame.readNanos - input.forwardedNanos);
+                inputToPhoton.record(now - input.receivedNanos);
+                addRecentTrace(new Trace(input.sequence,
+                        frame.frameNumber,
+                        input.receivedNanos,
+                        input.forwardedNanos,
+                        frame.readNanos,
+                        frame.encodedNanos,
+                        now));
+            }
+        }
+    }
+
+    private void addRecentTrace(Trace trace) {
+        synchronized (recentTraces) {
+            if (recentTraces.size() == RECENT_TRACES) {
+                recentTraces.poll();
+            }
+            recentTraces.add(trace);
+        }
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    public Snapshot snapshot() {
+        List<Trace> traces;
+        synchronized (recentTraces) {
+            traces = new ArrayList<>(recentTraces);
+        }
+        return new Snapshot(receivedToForwarded.snapshot(),
+                forwardedToFrameRead.snapshot(),
+                frameReadToEncoded.snapshot(),
+                encodedToFlushed.snapshot(),
+                inputToPhoton.snapshot(),
+                traces);
+    }
+}
@@ -0,0 +1,102 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the {@link QualityLadder} level for one viewer. The stream gets lighter as soon as writes block for a large
+ * part of the frame time, the viewer falls behind, or acknowledged frames take longer than the target round-trip
+ * time. It gets better again after a while without any of these.
+ */
+final class QualityController {
+
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+    private static final long DOWNGRADE_COOLDOWN_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long UPGRADE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int SENT_HISTORY = 64;
+
+    private final QualityLadder ladder;
+    private final long targetRttNanos;
+    private final int[] sentFrameNumbers = new int[SENT_HISTORY];
+    private final long[] sentAt = new long[SENT_HISTORY];
+
+    private volatile int level = 0;
+    private volatile long smoothedRttNanos = -1;
+    private volatile double framesPerSecond = 0;
+    private long smoothedWriteNanos = 0;
+    private long lastChange;
+    private long lastCongestion;
+    private long rateWindowStart;
+    private int framesInRateWindow = 0;
+
+    QualityController(QualityLadder ladder, long targetRttNanos, long now) {
+        this.ladder = ladder;
+        this.targetRttNanos = targetRttNanos;
+        this.lastChange = now;
+        this.lastCongestion = now;
+        this.rateWindowStart = now;
+    }
+
+    /**
+     * @param writeNanos time it took to write and flush the frame
+     * @param lagFrames  number of encoded frames that were newer than this one when it was picked
+     */
+    void onFrameWritten(int frameNumber, long writeNanos, long lagFrames, long now) {
+        sentFrameNumbers[frameNumber & (SENT_HISTORY - 1)] = frameNumber;
+        sentAt[frameNumber & (SENT_HISTORY - 1)] = now;
+        smoothedWriteNanos += (writeNanos - smoothedWriteNanos) / 8;
+
+        framesInRateWindow++;
+        if (now - rateWindowStart >= TimeUnit.SECONDS.toNanos(1)) {
+            framesPerSecond = framesInRateWindow * (double) TimeUnit.SECONDS.toNanos(1) / (now - rateWindowStart);
+            framesInRateWindow = 0;
+            rateWindowStart = now;
+        }
+
+        var frameBudget = FRAME_NANOS * ladder.get(level).frameInterval();
+        var rtt = smoothedRttNanos;
+        var congested = smoothedWriteNanos > frameBudget / 2 || lagFrames > 1 || rtt > targetRttNanos;
+        var healthy = smoothedWriteNanos < frameBudget / 4 && lagFrames == 0 && rtt < targetRttNanos / 2;
+        if (congested) {
+            lastCongestion = now;
+            if (level < ladder.size() - 1 && now - lastChange >= DOWNGRADE_COOLDOWN_NANOS) {
+                level++;
+                lastChange = now;
+            }
+        } else if (healthy && level > 0 && now - lastCongestion >= UPGRADE_AFTER_NANOS && now - lastChange >= UPGRADE_AFTER_NANOS) {
+            level--;
+            lastChange = now;
+        }
+    }
+
+    /**
+     * Called when the viewer acknowledged that it received the frame.
+     */
+    void onFrameAcknowledged(int frameNumber, long now) {
+        var index = frameNumber & (SENT_HISTORY - 1);
+        if (sentFrameNumbers[index] != frameNumber || sentAt[index] == 0) {
+            return;
+        }
+        var rtt = now - sentAt[index];
+        var previous = smoothedRttNanos;
+        smoothedRttNanos = previous < 0 ? rtt : previous + (rtt - previous) / 8;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    QualityLadder.Level getCurrentLevel() {
+        return ladder.get(level);
+    }
+
+    /**
+     * @return the smoothed round-trip time, or -1 if the viewer never acknowledged a frame
+     */
+    long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+}
@@ -0,0 +1,44 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding levels a {@link QualityController} moves between, ordered from the best to the lightest stream.
+ * The JPEG quality is lowered first. Once it reached its minimum, frames are skipped.
+ */
+public final class QualityLadder {
+
+    /**
+     * @param frameInterval only every n-th emulator frame is encoded
+     */
+    public record Level(float quality, int frameInterval) {
+    }
+
+    private final List<Level> levels = new ArrayList<>();
+
+    /**
+     * @param qualitySteps     number of levels between {@code maxQuality} and {@code minQuality}, inclusive
+     * @param maxFrameInterval the largest frame interval of the lightest level
+     */
+    public QualityLadder(float maxQuality, float minQuality, int qualitySteps, int maxFrameInterval) {
+        if (minQuality > maxQuality || qualitySteps < 1 || maxFrameInterval < 1) {
+            throw new IllegalArgumentException("Invalid quality bounds!");
+        }
+        for (int step = 0; step < qualitySteps; step++) {
+            var quality = qualitySteps == 1 ? maxQuality : maxQuality - (maxQuality - minQuality) * step / (qualitySteps - 1);
+            levels.add(new Level(quality, 1));
+        }
+        for (int frameInterval = 2; frameInterval <= maxFrameInterval; frameInterval++) {
+            levels.add(new Level(minQuality, frameInterval));
+        }
+    }
+
+    Level get(int index) {
+        return levels.get(index);
+    }
+
+    int size() {
+        return levels.size();
+    }
+}
@@ -0,0 +1,154 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.cbruegg.emuserver.platform.ds.JpegCompressor.*;
+
+/**
+ * Video encoder for {@link VideoProtocol#SPLIT_SCREENS}. The top and bottom screen are encoded concurrently on an
+ * {@link EncoderPool} and sent as separate messages. A screen that did not change is not sent, unless it has not been
+ * sent for {@code keyframeInterval} frames or a keyframe was requested.
+ * <p>
+ * Each message has the following layout, with all integers in big-endian byte order:
+ * <pre>
+ * int32   length of the rest of the message
+ * uint8   screen, {@link #SCREEN_TOP} or {@link #SCREEN_BOTTOM}
+ * int32   frame number, counting all emulator frames including skipped ones
+ * byte[]  JPEG of the screen
+ * </pre>
+ * If both screens of a frame are sent, the top screen comes first.
+ */
+public class SplitScreenCompressor implements VideoEncoder {
+
+    static final byte SCREEN_TOP = 0;
+    static final byte SCREEN_BOTTOM = 1;
+
+    private final EncoderPool encoderPool;
+    private final ScreenEncoder top;
+    private final ScreenEncoder bottom;
+    private final byte[] headerBuf = new byte[9];
+
+    SplitScreenCompressor(byte[] frame, float quality, EncoderPool encoderPool, int keyframeInterval) throws IOException {
+        this.encoderPool = encoderPool;
+        this.top = new ScreenEncoder(SCREEN_TOP, frame, quality, keyframeInterval);
+        this.bottom = new ScreenEncoder(SCREEN_BOTTOM, frame, quality, keyframeInterval);
+    }
+
+    @Override
+    public boolean encode(int frameNumber, OutputStream into) throws IOException {
+        var topEncoded = encoderPool.submit(top);
+        var bottomEncoded = encoderPool.submit(bottom);
+        boolean topChanged;
+        try {
+            topChanged = await(topEncoded);
+        } catch (IOException e) {
+            // Don't let the bottom screen encode into a closed encoder
+            awaitQuietly(bottomEncoded);
+            throw e;
+        }
+        var bottomChanged = await(bottomEncoded);
+
+        if (topChanged) {
+            writeScreen(top, frameNumber, headerBuf, into);
+        }
+        if (bottomChanged) {
+            writeScreen(bottom, frameNumber, headerBuf, into);
+        }
+        return topChanged && bottomChanged;
+    }
+
+    @Override
+    public void requestKeyframe() {
+        top.keyframeRequested.set(true);
+        bottom.keyframeRequested.set(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            top.close();
+        } finally {
+            bottom.close();
+        }
+    }
+
+    private static void writeScreen(ScreenEncoder screen, int frameNumber, byte[] headerBuf, OutputStream into) throws IOException {
+        var size = 1 + 4 + screen.jpegEncoder.size();
+        headerBuf[0] = (byte) (size >> 24);
+        headerBuf[1] = (byte) (size >> 16);
+        headerBuf[2] = (byte) (size >> 8);
+        headerBuf[3] = (byte) (size);
+        headerBuf[4] = screen.screen;
+        headerBuf[5] = (byte) (frameNumber >> 24);
+        headerBuf[6] = (byte) (frameNumber >> 16);
+        headerBuf[7] = (byte) (frameNumber >> 8);
+        headerBuf[8] = (byte) (frameNumber);
+        into.write(headerBuf);
+        screen.jpegEncoder.writeTo(into);
+    }
+
+    private static void awaitQuietly(Future<Boolean> encoded) {
+        try {
+            await(encoded);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static boolean await(Future<Boolean> encoded) throws IOException {
+        while (true) {
+            try {
+                return encoded.get();
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Encodes one screen of the shared frame buffer if it changed. Returns whether it did.
+     */
+    private static final class ScreenEncoder implements Callable<Boolean>, AutoCloseable {
+        final byte screen;
+        final JpegEncoder jpegEncoder;
+        private final byte[] frame;
+        private final int offset;
+        private final BufferedImage image;
+        private final TileHasher tileHasher = new TileHasher(SINGLE_SCREEN_HEIGHT, DirtyTileCompressor.TILE_SIZE);
+        private final int keyframeInterval;
+        private final AtomicBoolean keyframeRequested = new AtomicBoolean(true);
+        private int framesSinceSent = 0;
+
+        ScreenEncoder(byte screen, byte[] frame, float quality, int keyframeInterval) throws IOException {
+            this.screen = screen;
+            this.frame = frame;
+            this.offset = screen * SINGLE_SCREEN_SIZE_BYTES;
+            this.image = createFrameImage(frame, offset, SINGLE_SCREEN_HEIGHT);
+            this.jpegEncoder = new JpegEncoder(quality, SINGLE_SCREEN_SIZE_BYTES);
+            this.keyframeInterval = keyframeInterval;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            var changed = tileHasher.update(frame, offset) > 0;
+            framesSinceSent++;
+            if (!keyframeRequested.getAndSet(false) && !changed && framesSinceSent < keyframeInterval) {
+                return false;
+            }
+            jpegEncoder.encode(image, null);
+            framesSinceSent = 0;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            jpegEncoder.close();
+        }
+    }
+}
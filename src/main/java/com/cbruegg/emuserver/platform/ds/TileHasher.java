@@ -0,0 +1,98 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Hashes a frame in square tiles and remembers which tiles changed since the previous frame.
+ * Frames are expected in melonDS' layout, i.e. {@link JpegCompressor#BYTES_PER_PIXEL} bytes per pixel
+ * and lines of {@link JpegCompressor#SINGLE_SCREEN_WIDTH} pixels.
+ */
+final class TileHasher {
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long SEED = 0xCBF29CE484222325L;
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final int longsPerTileLine;
+    private final long[] hashes;
+    private final long[] previousHashes;
+    private final boolean[] dirty;
+    private boolean hasPrevious = false;
+
+    TileHasher(int height, int tileSize) {
+        if (JpegCompressor.SINGLE_SCREEN_WIDTH % tileSize != 0 || height % tileSize != 0 || (tileSize * JpegCompressor.BYTES_PER_PIXEL) % Long.BYTES != 0) {
+            throw new IllegalArgumentException("Tile size " + tileSize + " does not evenly divide the frame!");
+        }
+        this.tileSize = tileSize;
+        this.tilesX = JpegCompressor.SINGLE_SCREEN_WIDTH / tileSize;
+        this.tilesY = height / tileSize;
+        this.longsPerTileLine = tileSize * JpegCompressor.BYTES_PER_PIXEL / Long.BYTES;
+        this.hashes = new long[tilesX * tilesY];
+        this.previousHashes = new long[tilesX * tilesY];
+        this.dirty = new boolean[tilesX * tilesY];
+    }
+
+    /**
+     * Hashes the frame starting at {@code offset} in {@code pixels} and compares it with the previous one.
+     * On the first call, all tiles are dirty.
+     *
+     * @return the number of dirty tiles
+     */
+    int update(byte[] pixels, int offset) {
+        System.arraycopy(hashes, 0, previousHashes, 0, hashes.length);
+        for (int tile = 0; tile < hashes.length; tile++) {
+            hashes[tile] = SEED;
+        }
+
+        // Walk the frame line by line so memory is read sequentially
+        var lineBytes = JpegCompressor.SINGLE_SCREEN_WIDTH * JpegCompressor.BYTES_PER_PIXEL;
+        for (int y = 0; y < tilesY * tileSize; y++) {
+            var tileRowStart = (y / tileSize) * tilesX;
+            var position = offset + y * lineBytes;
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                var hash = hashes[tileRowStart + tileX];
+                for (int i = 0; i < longsPerTileLine; i++) {
+                    hash = (hash ^ (long) LONG_VIEW.get(pixels, position)) * MULTIPLIER;
+                    hash ^= hash >>> 29;
+                    position += Long.BYTES;
+                }
+                hashes[tileRowStart + tileX] = hash;
+            }
+        }
+
+        var dirtyTiles = 0;
+        for (int tile = 0; tile < hashes.length; tile++) {
+            dirty[tile] = !hasPrevious || hashes[tile] != previousHashes[tile];
+            if (dirty[tile]) {
+                dirtyTiles++;
+            }
+        }
+        hasPrevious = true;
+        return dirtyTiles;
+    }
+
+    boolean isDirty(int tileX, int tileY) {
+        return dirty[tileY * tilesX + tileX];
+    }
+
+    int getTileSize() {
+        return tileSize;
+    }
+
+    int getTilesX() {
+        return tilesX;
+    }
+
+    int getTilesY() {
+        return tilesY;
+    }
+
+    int getTileCount() {
+        return hashes.length;
+    }
+}
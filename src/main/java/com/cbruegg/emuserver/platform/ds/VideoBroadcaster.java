@@ -0,0 +1,428 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.utils.ClientConnection;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Context;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.RecordParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.cbruegg.emuserver.platform.ds.JpegCompressor.FRAME_SIZE_BYTES;
+
+/**
+ * Receives the frames of one emulator from a {@link FrameReader} and encodes each of them once per
+ * {@link VideoProtocol} and {@link QualityLadder} level that has subscribers. The encoded frames go into a ring buffer
+ * per protocol and level from which any number of subscribers are served. Each subscriber has a
+ * {@link QualityController} that moves it between levels.
+ * <p>
+ * Everything but encoding happens on the context the broadcaster was created on. Encoding happens on a worker
+ * executor, one frame at a time, and the next frame is only read once the previous one has been encoded.
+ * <p>
+ * A subscriber that falls behind never holds back the emulator or other subscribers. If its protocol allows it,
+ * it skips straight to the latest frame. Otherwise it keeps up from the ring buffer and, once it fell behind by more
+ * than the ring buffer holds, waits for a keyframe, which is then requested from the encoder.
+ */
+public final class VideoBroadcaster implements FrameReader.Listener, AutoCloseable {
+
+    private record EncodedFrame(long sequence, int frameNumber, boolean keyframe, Buffer data) {
+    }
+
+    /**
+     * @param rttMillis smoothed round-trip time, or -1 if the viewer does not acknowledge frames
+     */
+    public record ViewerStats(VideoProtocol protocol, float quality, double framesPerSecond, long rttMillis) {
+    }
+
+    private final Context context;
+    private final WorkerExecutor encoderExecutor;
+    private final EncoderPool encoderPool;
+    private final int keyframeInterval;
+    private final int ringSize;
+    private final QualityLadder qualityLadder;
+    private final long targetRttNanos;
+    private final byte[] frame = new byte[FRAME_SIZE_BYTES];
+    // Only used by the encoding task
+    private final ByteArrayOutputStream encodedFrame = new ByteArrayOutputStream(FRAME_SIZE_BYTES);
+    private final Map<VideoProtocol, Channel[]> channels = new EnumMap<>(VideoProtocol.class);
+    private final List<Channel> activeChannels = new ArrayList<>();
+    private final Set<Viewer> viewers = ConcurrentHashMap.newKeySet();
+    private final FrameReader.Registration registration;
+    private final LatencyTracer latencyTracer;
+    private final SessionMetrics metrics;
+    private int frameNumber = 0;
+    private boolean encoding = false;
+    private boolean stopped = false;
+
+    /**
+     * Must be called on the context that is going to serve the subscribers.
+     *
+     * @param encoderExecutor runs the encoding of whole frames. Must not be backed by {@code encoderPool}, which the
+     *                        encoders of some protocols wait for.
+     */
+    public VideoBroadcaster(Context context,
+                            SocketChannel videoChannel,
+                            FrameReader frameReader,
+                            WorkerExecutor encoderExecutor,
+                            EncoderPool encoderPool,
+                            int keyframeInterval,
+                            int ringSize,
+                            QualityLadder qualityLadder,
+                            long targetRttMillis,
+                            LatencyTracer latencyTracer,
+                            SessionMetrics metrics) throws IOException {
+        this.context = context;
+        this.encoderExecutor = encoderExecutor;
+        this.encoderPool = encoderPool;
+        this.keyframeInterval = keyframeInterval;
+        this.ringSize = ringSize;
+        this.qualityLadder = qualityLadder;
+        this.targetRttNanos = TimeUnit.MILLISECONDS.toNanos(targetRttMillis);
+        this.latencyTracer = latencyTracer;
+        this.metrics = metrics;
+        this.registration = frameReader.register(videoChannel, frame, this);
+    }
+
+    @Override
+    public void onFrame() {
+        var readNanos = System.nanoTime();
+        context.runOnContext(v -> encodeFrame(readNanos));
+    }
+
+    @Override
+    public void onClosed() {
+        context.runOnContext(v -> stop());
+    }
+
+    private void encodeFrame(long readNanos) {
+        if (stopped) {
+            return;
+        }
+
+        var due = new ArrayList<Channel>(activeChannels.size());
+        for (Channel channel : activeChannels) {
+            if (channel.subscribers > 0 && frameNumber % channel.level.frameInterval() == 0) {
+                due.add(channel);
+            }
+        }
+        var currentFrameNumber = frameNumber++;
+        metrics.onFrameRead();
+        latencyTracer.onFrameRead(currentFrameNumber, readNanos);
+        if (due.isEmpty()) {
+            latencyTracer.onFrameSkipped(currentFrameNumber);
+            registration.resume();
+            return;
+        }
+
+        encoding = true;
+        encoderExecutor.<EncodedFrame[]>executeBlocking(promise -> {
+            try {
+                promise.complete(encode(due, currentFrameNumber));
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false, encoded -> {
+            encoding = false;
+            if (encoded.failed()) {
+                System.err.println("Video encoding error!");
+                encoded.cause().printStackTrace();
+                stop();
+                return;
+            }
+            var published = false;
+            for (int i = 0; i < due.size(); i++) {
+                if (encoded.result()[i] != null) {
+                    due.get(i).publish(encoded.result()[i]);
+                    published = true;
+                }
+            }
+            if (published) {
+                latencyTracer.onFrameEncoded(currentFrameNumber, System.nanoTime());
+            } else {
+                latencyTracer.onFrameSkipped(currentFrameNumber);
+            }
+            if (stopped) {
+                closeEncoders();
+                return;
+            }
+            for (Viewer viewer : viewers) {
+                pump(viewer);
+            }
+            registration.resume();
+        });
+    }
+
+    /**
+     * Runs on the encoder executor while the frame reader is paused, so the frame buffer doesn't change.
+     *
+     * @return the encoded frame of each channel, or null where the encoder wrote nothing
+     */
+    private EncodedFrame[] encode(List<Channel> due, int frameNumber) throws IOException {
+        var start = System.nanoTime();
+        var encoded = new EncodedFrame[due.size()];
+        var any = false;
+        for (int i = 0; i < due.size(); i++) {
+            var channel = due.get(i);
+            if (channel.encoder == null) {
+                channel.encoder = createEncoder(channel.protocol, channel.level.quality());
+            }
+            if (channel.keyframeRequested.getAndSet(false)) {
+                channel.encoder.requestKeyframe();
+            }
+            encodedFrame.reset();
+            var keyframe = channel.encoder.encode(frameNumber, encodedFrame);
+            if (encodedFrame.size() > 0) {
+                // Copied once out of the reused stream, as it stays in the ring buffer. The copy is wrapped, not copied
+                // again, and the same buffer is written to every subscriber.
+                var data = Buffer.buffer(Unpooled.wrappedBuffer(encodedFrame.toByteArray()));
+                encoded[i] = new EncodedFrame(-1, frameNumber, keyframe, data);
+                any = true;
+            }
+        }
+        if (any) {
+            metrics.onFrameEncoded(System.nanoTime() - start);
+        }
+        return encoded;
+    }
+
+    /**
+     * Sends the encoded frames to {@code connection} until the emulator stops or the connection is closed.
+     * Must be called on the context of the broadcaster.
+     * <p>
+     * If the negotiated protocol has frame numbers, the viewer may acknowledge each frame it received
+     * by sending its frame number as a big-endian int32.
+     */
+    public void subscribe(ClientConnection connection) {
+        VideoProtocol.negotiate(context.owner(), connection, negotiated -> {
+            if (negotiated.failed()) {
+                negotiated.cause().printStackTrace();
+                connection.close();
+                return;
+            }
+            if (stopped) {
+                connection.close();
+                return;
+            }
+
+            var protocol = negotiated.result().protocol();
+            var viewer = new Viewer(connection, protocol, new QualityController(qualityLadder, targetRttNanos, System.nanoTime()));
+            viewer.level = viewer.qualityController.getLevel();
+            viewer.channel = join(protocol, viewer.level);
+            viewer.sent = viewer.channel.latestSequence;
+            viewer.channel.keyframeRequested.set(true);
+            viewers.add(viewer);
+
+            if (protocol.hasFrameNumbers()) {
+                var acks = RecordParser.newFixed(4, ack -> viewer.qualityController.onFrameAcknowledged(ack.getInt(0), System.nanoTime()));
+                connection.handler(acks);
+                acks.handle(negotiated.result().remainder());
+            } else {
+                connection.handler(ignored -> {
+                });
+            }
+            connection.exceptionHandler(Throwable::printStackTrace);
+            connection.closeHandler(closed -> unsubscribe(viewer));
+        });
+    }
+
+    private void unsubscribe(Viewer viewer) {
+        if (viewers.remove(viewer)) {
+            leave(viewer.channel);
+        }
+    }
+
+    /**
+     * Writes the next frame to the viewer unless a write is still in flight.
+     */
+    private void pump(Viewer viewer) {
+        var channel = viewer.channel;
+        var latest = channel.latestSequence;
+        if (viewer.writing || latest <= viewer.sent) {
+            return;
+        }
+
+        var next = viewer.needsKeyframe || viewer.protocol.hasIndependentFrames() ? latest : viewer.sent + 1;
+        var encodedFrame = channel.get(next);
+        if (encodedFrame == null || (viewer.needsKeyframe && !encodedFrame.keyframe())) {
+            // Fell behind by more than the ring buffer holds, or still waiting for the first frame
+            viewer.needsKeyframe = true;
+            channel.keyframeRequested.set(true);
+            viewer.sent = latest;
+            return;
+        }
+
+        viewer.writing = true;
+        viewer.sent = next;
+        viewer.needsKeyframe = false;
+        var writeStart = System.nanoTime();
+        viewer.connection.write(encodedFrame.data(), written -> {
+            viewer.writing = false;
+            if (written.failed()) {
+                viewer.connection.close();
+                return;
+            }
+
+            var now = System.nanoTime();
+            metrics.onBytesSent(SessionMetrics.Socket.VIDEO, encodedFrame.data().length());
+            latencyTracer.onFrameFlushed(encodedFrame.frameNumber(), now);
+            viewer.qualityController.onFrameWritten(encodedFrame.frameNumber(), now - writeStart, latest - next, now);
+            if (viewer.qualityController.getLevel() != viewer.level) {
+                // The new level has its own encoder, so continue with one of its keyframes
+                viewer.level = viewer.qualityController.getLevel();
+                var previousChannel = viewer.channel;
+                viewer.channel = join(viewer.protocol, viewer.level);
+                leave(previousChannel);
+                viewer.sent = viewer.channel.latestSequence;
+                viewer.needsKeyframe = true;
+                viewer.channel.keyframeRequested.set(true);
+            }
+            pump(viewer);
+        });
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    public int getViewerCount() {
+        return viewers.size();
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    public List<ViewerStats> getViewerStats() {
+        var stats = new ArrayList<ViewerStats>();
+        for (Viewer viewer : viewers) {
+            var qualityController = viewer.qualityController;
+            var rttNanos = qualityController.getSmoothedRttNanos();
+            stats.add(new ViewerStats(viewer.protocol,
+                    qualityController.getCurrentLevel().quality(),
+                    qualityController.getFramesPerSecond(),
+                    rttNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(rttNanos)));
+        }
+        return stats;
+    }
+
+    private Channel join(VideoProtocol protocol, int level) {
+        var protocolChannels = channels.computeIfAbsent(protocol, p -> new Channel[qualityLadder.size()]);
+        var channel = protocolChannels[level];
+        if (channel == null) {
+            channel = new Channel(protocol, qualityLadder.get(level), ringSize);
+            protocolChannels[level] = channel;
+            activeChannels.add(channel);
+        }
+        channel.subscribers++;
+        return channel;
+    }
+
+    private void leave(Channel channel) {
+        channel.subscribers--;
+    }
+
+    private VideoEncoder createEncoder(VideoProtocol protocol, float quality) throws IOException {
+        return switch (protocol) {
+            case JPEG -> new JpegCompressor(frame, quality);
+            case DIRTY_TILES -> new DirtyTileCompressor(frame, quality, keyframeInterval);
+            case SPLIT_SCREENS -> new SplitScreenCompressor(frame, quality, encoderPool, keyframeInterval);
+        };
+    }
+
+    private void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        registration.close();
+        for (Viewer viewer : viewers) {
+            viewer.connection.close();
+        }
+        if (!encoding) {
+            closeEncoders();
+        }
+    }
+
+    private void closeEncoders() {
+        for (Channel channel : activeChannels) {
+            if (channel.encoder != null) {
+                try {
+                    channel.encoder.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    @Override
+    public void close() {
+        context.runOnContext(v -> stop());
+    }
+
+    private static final class Viewer {
+        final ClientConnection connection;
+        final VideoProtocol protocol;
+        final QualityController qualityController;
+        Channel channel;
+        int level;
+        long sent;
+        boolean needsKeyframe = true;
+        boolean writing = false;
+
+        Viewer(ClientConnection connection, VideoProtocol protocol, QualityController qualityController) {
+            this.connection = connection;
+            this.protocol = protocol;
+            this.qualityController = qualityController;
+        }
+    }
+
+    /**
+     * Encoder and ring buffer of one protocol and level. Apart from the encoder, which is only used by the encoding
+     * task, everything is accessed on the context of the broadcaster.
+     */
+    private static final class Channel {
+        final VideoProtocol protocol;
+        final QualityLadder.Level level;
+        final AtomicBoolean keyframeRequested = new AtomicBoolean(true);
+        VideoEncoder encoder;
+        int subscribers = 0;
+        long latestSequence = -1;
+        private final EncodedFrame[] ring;
+
+        Channel(VideoProtocol protocol, QualityLadder.Level level, int ringSize) {
+            this.protocol = protocol;
+            this.level = level;
+            this.ring = new EncodedFrame[ringSize];
+        }
+
+        void publish(EncodedFrame encodedFrame) {
+            latestSequence++;
+            ring[(int) (latestSequence % ring.length)] = new EncodedFrame(latestSequence,
+                    encodedFrame.frameNumber(),
+                    encodedFrame.keyframe(),
+                    encodedFrame.data());
+        }
+
+        /**
+         * @return the frame with the sequence number, or null if it has been overwritten already
+         */
+        EncodedFrame get(long sequence) {
+            var encodedFrame = ring[(int) (sequence % ring.length)];
+            return encodedFrame != null && encodedFrame.sequence() == sequence ? encodedFrame : null;
+        }
+    }
+}
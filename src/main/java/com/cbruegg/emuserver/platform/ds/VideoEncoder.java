@@ -0,0 +1,26 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns the frames in a shared frame buffer into the messages of one {@link VideoProtocol}.
+ * Implementations are bound to the frame buffer when they are created.
+ */
+interface VideoEncoder extends AutoCloseable {
+
+    /**
+     * Encodes the frame that is currently in the frame buffer. Writes nothing if the frame does not need to be sent.
+     *
+     * @return whether the written messages can be decoded without any previous messages
+     */
+    boolean encode(int frameNumber, OutputStream into) throws IOException;
+
+    /**
+     * Makes the next written frame decodable without any previous messages. May be called from any thread.
+     */
+    void requestKeyframe();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,89 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import com.cbruegg.emuserver.utils.ClientConnection;
+import com.cbruegg.emuserver.utils.Handshake;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire formats of the video socket, negotiated through a {@link Handshake} with the magic {@code EMUV}.
+ * <p>
+ * On protocols with frame numbers, clients may send the frame number of each frame they received back to the server
+ * as a big-endian int32. The server uses it to measure the round-trip time and adapt the stream to the connection.
+ */
+public enum VideoProtocol {
+    /**
+     * One length-prefixed JPEG of both screens per emulator frame, see {@link JpegCompressor}.
+     * Spoken to clients that don't send a hello.
+     */
+    JPEG(1, false, true),
+    /**
+     * Full and partial frames with duplicate frame suppression, see {@link DirtyTileCompressor}.
+     */
+    DIRTY_TILES(2, true, false),
+    /**
+     * Top and bottom screen encoded concurrently and sent as separate messages, see {@link SplitScreenCompressor}.
+     */
+    SPLIT_SCREENS(3, true, false);
+
+    /**
+     * @param remainder whatever the client sent after its hello
+     */
+    record Negotiated(VideoProtocol protocol, Buffer remainder) {
+    }
+
+    private static final byte[] MAGIC = "EMUV".getBytes(StandardCharsets.US_ASCII);
+
+    private final int version;
+    private final boolean frameNumbers;
+    private final boolean independentFrames;
+
+    VideoProtocol(int version, boolean frameNumbers, boolean independentFrames) {
+        this.version = version;
+        this.frameNumbers = frameNumbers;
+        this.independentFrames = independentFrames;
+    }
+
+    /**
+     * Whether messages carry frame numbers, which viewers can send back as acknowledgements.
+     */
+    boolean hasFrameNumbers() {
+        return frameNumbers;
+    }
+
+    /**
+     * Whether every frame can be decoded on its own, so viewers may skip any of them.
+     */
+    boolean hasIndependentFrames() {
+        return independentFrames;
+    }
+
+    /**
+     * Determines the protocol to speak on a freshly accepted connection. Unknown versions fall back to {@link #JPEG}.
+     */
+    static void negotiate(Vertx vertx, ClientConnection connection, Handler<AsyncResult<Negotiated>> handler) {
+        Handshake.readClientVersion(vertx, connection, MAGIC, hello -> {
+            if (hello.failed()) {
+                handler.handle(Future.failedFuture(hello.cause()));
+                return;
+            }
+
+            var requestedVersion = hello.result().version();
+            var protocol = JPEG;
+            for (VideoProtocol candidate : values()) {
+                if (candidate.version == requestedVersion) {
+                    protocol = candidate;
+                }
+            }
+            if (requestedVersion != Handshake.NO_HELLO) {
+                Handshake.writeServerVersion(connection, MAGIC, protocol.version);
+            }
+            handler.handle(Future.succeededFuture(new Negotiated(protocol, hello.result().remainder())));
+        });
+    }
+}
@@ -0,0 +1,93 @@
+package com.cbruegg.emuserver.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deltas between two versions of binary data, e.g. save states, which mostly differ in a few places. A delta consists
+ * of the ranges that changed, each with its offset, and is deflated.
+ */
+public final class BinaryDelta {
+
+    // Equal bytes shorter than this don't end a changed range, since a new range costs 8 bytes
+    private static final int MIN_EQUAL_RUN = 16;
+    private static final int END_OF_RANGES = -1;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * @return a delta that {@link #apply(byte[], byte[])} turns {@code base} into {@code target} with
+     */
+    public static byte[] encode(byte[] base, byte[] target) {
+        var encoded = new ByteArrayOutputStream();
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try (var out = new DataOutputStream(new DeflaterOutputStream(encoded, deflater, 0x2000))) {
+            out.writeInt(target.length);
+            var common = Math.min(base.length, target.length);
+            var position = 0;
+            while (position < common) {
+                var mismatch = Arrays.mismatch(base, position, common, target, position, common);
+                if (mismatch < 0) {
+                    break;
+                }
+                var start = position + mismatch;
+                var end = endOfChange(base, target, start, common);
+                out.writeInt(start);
+                out.writeInt(end - start);
+                out.write(target, start, end - start);
+                position = end;
+            }
+            if (target.length > common) {
+                out.writeInt(common);
+                out.writeInt(target.length - common);
+                out.write(target, common, target.length - common);
+            }
+            out.writeInt(END_OF_RANGES);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } finally {
+            deflater.end();
+        }
+        return encoded.toByteArray();
+    }
+
+    private static int endOfChange(byte[] base, byte[] target, int start, int common) {
+        var end = start;
+        var equalRun = 0;
+        for (int i = start; i < common && equalRun < MIN_EQUAL_RUN; i++) {
+            if (base[i] == target[i]) {
+                equalRun++;
+            } else {
+                equalRun = 0;
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        try (var in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(delta)))) {
+            var result = Arrays.copyOf(base, in.readInt());
+            int offset;
+            while ((offset = in.readInt()) != END_OF_RANGES) {
+                var length = in.readInt();
+                if (offset < 0 || length < 0 || offset + length > result.length) {
+                    throw new IOException("Invalid range " + offset + "+" + length + " in delta!");
+                }
+                in.readFully(result, offset, length);
+            }
+            return result;
+        } catch (EOFException e) {
+            throw new IOException("Truncated delta!", e);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.cbruegg.emuserver.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetSocket;
+
+import javax.annotation.Nullable;
+
+/**
+ * The connection of a client to one of the sockets of a session, either a TCP connection of its own or one channel
+ * of a WebSocket that carries several of them. Only what the servers of the sockets need, so both can implement it.
+ */
+public interface ClientConnection {
+
+    static ClientConnection of(NetSocket socket) {
+        return new ClientConnection() {
+            @Override
+            public void write(Buffer data) {
+                socket.write(data);
+            }
+
+            @Override
+            public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+                socket.write(data, handler);
+            }
+
+            @Override
+            public boolean writeQueueFull() {
+                return socket.writeQueueFull();
+            }
+
+            @Override
+            public void drainHandler(@Nullable Handler<Void> handler) {
+                socket.drainHandler(handler);
+            }
+
+            @Override
+            public void handler(@Nullable Handler<Buffer> handler) {
+                socket.handler(handler);
+            }
+
+            @Override
+            public void exceptionHandler(@Nullable Handler<Throwable> handler) {
+                socket.exceptionHandler(handler);
+            }
+
+            @Override
+            public void closeHandler(@Nullable Handler<Void> handler) {
+                socket.closeHandler(handler);
+            }
+
+            @Override
+            public void pause() {
+                socket.pause();
+            }
+
+            @Override
+            public void fetch(long amount) {
+                socket.fetch(amount);
+            }
+
+            @Override
+            public void close() {
+                socket.close();
+            }
+        };
+    }
+
+    void write(Buffer data);
+
+    void write(Buffer data, Handler<AsyncResult<Void>> handler);
+
+    boolean writeQueueFull();
+
+    void drainHandler(@Nullable Handler<Void> handler);
+
+    void handler(@Nullable Handler<Buffer> handler);
+
+    void exceptionHandler(@Nullable Handler<Throwable> handler);
+
+    void closeHandler(@Nullable Handler<Void> handler);
+
+    /**
+     * Stops passing received data to the handler until it is fetched.
+     */
+    void pause();
+
+    /**
+     * Passes {@code amount} more received buffers to the handler, or all of them with {@link Long#MAX_VALUE}.
+     */
+    void fetch(long amount);
+
+    void close();
+}
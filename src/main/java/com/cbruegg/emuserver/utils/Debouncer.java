@@ -1,41 +1,85 @@
 package com.cbruegg.emuserver.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public final class Debouncer implements AutoCloseable {
+/**
+ * Runs the latest action of a key once no further actions came in for that key for a while. All keys share one
+ * scheduler. Debouncing a key that is scheduled already only moves its deadline, so a burst of calls schedules a single
+ * task rather than one per call.
+ */
+public final class Debouncer<K> {
 
-    private static final long DEFAULT_DURATION_MS = 500;
+    private static final class Pending {
+        Runnable action;
+        long deadlineNanos;
 
-    private final long durationMs;
+        Pending(Runnable action, long deadlineNanos) {
+            this.action = action;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
 
-    private final Timer timer = new Timer("Debouncer");
-    private TimerTask currentTimerTask = null;
+    private final ScheduledExecutorService scheduler;
+    private final long durationNanos;
+    // Pending actions are only changed while their entry is locked by the map
+    private final Map<K, Pending> pending = new ConcurrentHashMap<>();
 
-    public Debouncer() {
-        this(DEFAULT_DURATION_MS);
+    /**
+     * @param scheduler runs the actions, so it should have enough threads for the actions that are due at once
+     */
+    public Debouncer(ScheduledExecutorService scheduler, long durationMs) {
+        this.scheduler = scheduler;
+        this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMs);
     }
 
-    public Debouncer(long durationMs) {
-        this.durationMs = durationMs;
+    public void debounce(K key, Runnable action) {
+        var deadline = System.nanoTime() + durationNanos;
+        var scheduled = new boolean[]{true};
+        pending.compute(key, (k, existing) -> {
+            if (existing == null) {
+                scheduled[0] = false;
+                return new Pending(action, deadline);
+            }
+            existing.action = action;
+            existing.deadlineNanos = deadline;
+            return existing;
+        });
+        if (!scheduled[0]) {
+            scheduler.schedule(() -> fire(key), durationNanos, TimeUnit.NANOSECONDS);
+        }
     }
 
-    public synchronized void debounce(Runnable runnable) {
-        if (currentTimerTask != null) {
-            currentTimerTask.cancel();
-        }
+    private void fire(K key) {
+        var now = System.nanoTime();
+        var due = new Runnable[1];
+        var remainingNanos = new long[1];
+        pending.computeIfPresent(key, (k, existing) -> {
+            if (existing.deadlineNanos - now > 0) {
+                remainingNanos[0] = existing.deadlineNanos - now;
+                return existing;
+            }
+            due[0] = existing.action;
+            return null;
+        });
 
-        currentTimerTask = new TimerTask() {
-            @Override
-            public void run() {
-                runnable.run();
+        if (due[0] != null) {
+            try {
+                due[0].run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
             }
-        };
-        timer.schedule(currentTimerTask, durationMs);
+        } else if (remainingNanos[0] > 0) {
+            scheduler.schedule(() -> fire(key), remainingNanos[0], TimeUnit.NANOSECONDS);
+        }
     }
 
-    @Override
-    public void close() {
-        timer.cancel();
+    /**
+     * Drops the pending action of the key, if any.
+     */
+    public void cancel(K key) {
+        pending.remove(key);
     }
 }
@@ -0,0 +1,72 @@
+package com.cbruegg.emuserver.utils;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Optional protocol negotiation for sockets on which the server speaks first. A client that wants something
+ * other than the original protocol sends a hello of four magic bytes and a one byte version right after connecting.
+ * The server confirms with the same magic and the version it is going to speak. Clients that send nothing within
+ * {@link #HELLO_TIMEOUT_MS} keep the original protocol.
+ */
+public final class Handshake {
+
+    public static final int NO_HELLO = -1;
+    public static final int HELLO_TIMEOUT_MS = 250;
+
+    /**
+     * @param version   the version requested by the client, or {@link #NO_HELLO} if it did not send a hello
+     * @param remainder whatever the client sent after its hello
+     */
+    public record Hello(int version, Buffer remainder) {
+    }
+
+    private Handshake() {
+    }
+
+    /**
+     * Waits for the hello on a freshly accepted connection. Replaces the handlers of the connection, so the caller
+     * has to set its own ones in {@code handler}, which is called on the context of the connection.
+     */
+    public static void readClientVersion(Vertx vertx, ClientConnection connection, byte[] magic, Handler<AsyncResult<Hello>> handler) {
+        Promise<Hello> promise = Promise.promise();
+        promise.future().setHandler(handler);
+
+        var received = Buffer.buffer(magic.length + 1);
+        var timer = vertx.setTimer(HELLO_TIMEOUT_MS, timerId -> {
+            if (received.length() == 0) {
+                promise.tryComplete(new Hello(NO_HELLO, received));
+            } else {
+                promise.tryFail(new IOException("Incomplete hello!"));
+            }
+        });
+        connection.handler(data -> {
+            received.appendBuffer(data);
+            if (received.length() < magic.length + 1 || promise.future().isComplete()) {
+                return;
+            }
+            vertx.cancelTimer(timer);
+            if (!Arrays.equals(received.getBytes(0, magic.length), magic)) {
+                promise.tryFail(new IOException("Invalid hello!"));
+            } else {
+                promise.tryComplete(new Hello(received.getUnsignedByte(magic.length), received.slice(magic.length + 1, received.length())));
+            }
+        });
+        connection.closeHandler(closed -> {
+            vertx.cancelTimer(timer);
+            promise.tryFail(new IOException("EOF"));
+        });
+    }
+
+    public static void writeServerVersion(ClientConnection connection, byte[] magic, int version) {
+        var reply = Arrays.copyOf(magic, magic.length + 1);
+        reply[magic.length] = (byte) version;
+        connection.write(Buffer.buffer(reply));
+    }
+}
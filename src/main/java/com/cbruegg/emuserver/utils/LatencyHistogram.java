@@ -0,0 +1,77 @@
+package com.cbruegg.emuserver.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with four buckets per power of two microseconds, so percentiles are accurate to about 25%.
+ * Latencies may be recorded and read from any thread.
+ */
+public final class LatencyHistogram {
+
+    public record Snapshot(long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+    }
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Enough for latencies of more than a minute
+    private static final int BUCKETS = 27 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(nanos / 1000));
+        count.increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        var counts = new long[BUCKETS];
+        var total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        var mean = total == 0 ? 0 : sumNanos.sum() / (double) count.sum() / 1e6;
+        return new Snapshot(total,
+                mean,
+                percentile(counts, total, 0.5),
+                percentile(counts, total, 0.9),
+                percentile(counts, total, 0.99),
+                maxNanos.get() / 1e6);
+    }
+
+    private static double percentile(long[] counts, long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        var rank = (long) Math.ceil(percentile * total);
+        var seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i) / 1000.0;
+            }
+        }
+        return upperBoundMicros(counts.length - 1) / 1000.0;
+    }
+
+    private static int bucketOf(long micros) {
+        var value = Math.max(SUB_BUCKETS, micros);
+        var exponent = 63 - Long.numberOfLeadingZeros(value);
+        var subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket);
+    }
+
+    private static long upperBoundMicros(int bucket) {
+        var exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS;
+        var subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,85 @@
+package com.cbruegg.emuserver.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes log lines of any number of sources to one stream on a thread of its own. Lines are queued without blocking
+ * and written in batches, with a single flush per batch. If the stream can't keep up and the queue is full, lines are
+ * dropped rather than holding back the sources, and the number of dropped lines is logged once there is room again.
+ * <p>
+ * All methods may be called from any thread.
+ */
+public final class LogSink {
+
+    private record Line(byte[] prefix, byte[] line) {
+    }
+
+    private static final int MAX_BATCH_LINES = 256;
+    private static final int OUTPUT_BUFFER_SIZE = 0x10000;
+
+    private final OutputStream out;
+    private final BlockingQueue<Line> queue;
+    private final AtomicLong droppedLines = new AtomicLong();
+    // Only used by the thread
+    private long reportedDroppedLines = 0;
+
+    public LogSink(OutputStream out, int queueSize) {
+        this.out = new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        var thread = new Thread(this::write);
+        thread.setName("LogSink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the line, unless the queue is full.
+     *
+     * @param prefix written in front of the line, e.g. to tell the sources apart. Must not be modified afterwards.
+     * @param line   without its line break. Must not be modified afterwards.
+     */
+    public void offer(byte[] prefix, byte[] line) {
+        if (!queue.offer(new Line(prefix, line))) {
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private void write() {
+        var batch = new ArrayList<Line>(MAX_BATCH_LINES);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH_LINES - 1);
+            try {
+                for (Line line : batch) {
+                    out.write(line.prefix());
+                    out.write(line.line());
+                    out.write('\n');
+                }
+                var dropped = droppedLines.get();
+                if (dropped > reportedDroppedLines) {
+                    out.write(("Dropped " + (dropped - reportedDroppedLines) + " log lines.\n").getBytes(StandardCharsets.UTF_8));
+                    reportedDroppedLines = dropped;
+                }
+                out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            batch.clear();
+        }
+    }
+}
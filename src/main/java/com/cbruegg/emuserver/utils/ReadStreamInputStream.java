@@ -0,0 +1,103 @@
+package com.cbruegg.emuserver.utils;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.ReadStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a Vert.x {@link ReadStream} from a blocking thread. The stream is paused while more than
+ * {@code maxBufferedBytes} have been received but not read yet.
+ * <p>
+ * Must be created on the context of the stream, before any of its data arrives.
+ */
+public final class ReadStreamInputStream extends InputStream {
+
+    private static final Buffer END = Buffer.buffer();
+
+    private final ReadStream<Buffer> stream;
+    private final long maxBufferedBytes;
+    private final BlockingQueue<Buffer> buffers = new LinkedBlockingQueue<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private volatile Throwable failure;
+    private volatile boolean closed = false;
+    // Only used by the reading thread
+    private Buffer current = Buffer.buffer();
+    private int position = 0;
+
+    public ReadStreamInputStream(ReadStream<Buffer> stream, long maxBufferedBytes) {
+        this.stream = stream;
+        this.maxBufferedBytes = maxBufferedBytes;
+        stream.handler(this::onData);
+        stream.endHandler(v -> buffers.add(END));
+        stream.exceptionHandler(e -> {
+            failure = e;
+            buffers.add(END);
+        });
+    }
+
+    private void onData(Buffer data) {
+        if (closed) {
+            return;
+        }
+        // Pausing before the data is queued guarantees that the reader sees the flag once it gets to the data
+        if (bufferedBytes.addAndGet(data.length()) > maxBufferedBytes) {
+            stream.pause();
+            paused.set(true);
+        }
+        buffers.add(data);
+    }
+
+    @Override
+    public int read() throws IOException {
+        var single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == current.length()) {
+            if (current == END) {
+                return -1;
+            }
+            current = ConcurrentUtils.takeUninterruptibly(buffers);
+            position = 0;
+            if (current == END) {
+                buffers.add(END);
+                if (failure != null) {
+                    throw new IOException(failure);
+                }
+                return -1;
+            }
+            if (bufferedBytes.addAndGet(-current.length()) <= maxBufferedBytes / 2 && paused.getAndSet(false)) {
+                stream.resume();
+            }
+        }
+
+        var read = Math.min(len, current.length() - position);
+        current.getBytes(position, position + read, b, off);
+        position += read;
+        return read;
+    }
+
+    /**
+     * Discards the rest of the stream.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        buffers.clear();
+        if (paused.getAndSet(false)) {
+            stream.resume();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.cbruegg.emuserver.utils;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes to a Vert.x {@link WriteStream} from a blocking thread, in chunks of {@code chunkSize} bytes. Writing blocks
+ * while the write queue of the stream is full. Closing this stream flushes it, but doesn't end the write stream.
+ * <p>
+ * Must be created on the context of the stream.
+ */
+public final class WriteStreamOutputStream extends OutputStream {
+
+    // Guards against missing a drain that happens between checking the queue and waiting
+    private static final long DRAIN_POLL_MILLIS = 100;
+
+    private final WriteStream<Buffer> stream;
+    private final int chunkSize;
+    private final Object drained = new Object();
+    private Buffer chunk;
+    private volatile boolean aborted = false;
+    private boolean written = false;
+
+    public WriteStreamOutputStream(WriteStream<Buffer> stream, int chunkSize) {
+        this.stream = stream;
+        this.chunkSize = chunkSize;
+        this.chunk = Buffer.buffer(chunkSize);
+        stream.drainHandler(v -> {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        chunk.appendByte((byte) b);
+        if (chunk.length() >= chunkSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            var count = Math.min(len, chunkSize - chunk.length());
+            chunk.appendBytes(b, off, count);
+            off += count;
+            len -= count;
+            if (chunk.length() >= chunkSize) {
+                flush();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (chunk.length() == 0) {
+            return;
+        }
+        synchronized (drained) {
+            while (stream.writeQueueFull() && !aborted) {
+                try {
+                    drained.wait(DRAIN_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+        if (aborted) {
+            throw new IOException("Stream has been closed!");
+        }
+        stream.write(chunk);
+        written = true;
+        chunk = Buffer.buffer(chunkSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Fails all further writes, e.g. because the connection has been closed. May be called from any thread.
+     */
+    public void abort() {
+        aborted = true;
+        synchronized (drained) {
+            drained.notifyAll();
+        }
+    }
+
+    /**
+     * @return whether any data has been passed to the write stream yet
+     */
+    public boolean hasWritten() {
+        return written;
+    }
+}
@@ -0,0 +1,115 @@
+package com.cbruegg.emuserver;
+
+import com.cbruegg.emuserver.metrics.MetricsRegistry;
+import com.cbruegg.emuserver.metrics.SessionMetrics;
+import com.cbruegg.emuserver.platform.ds.AudioProtocol;
+import com.cbruegg.emuserver.platform.ds.ImaAdpcmEncoder;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioServerTest {
+
+    private static final int PCM_SIZE = 0x1000;
+
+    private Vertx vertx;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        var closed = new CompletableFuture<Void>();
+        vertx.close(v -> closed.complete(null));
+        closed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void coalescesCompressedChunksIntoOneWrite() throws Exception {
+        var writes = new CopyOnWriteArrayList<Buffer>();
+        var done = new CompletableFuture<Void>();
+        var client = new AudioServer.Client() {
+            @Override
+            public void write(Buffer message) {
+                writes.add(message);
+                done.complete(null);
+            }
+
+            @Override
+            public boolean writeQueueFull() {
+                return false;
+            }
+
+            @Override
+            public boolean coalesces() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        var emulator = startEmulator(List.of(chunk(PCM_SIZE), chunk(PCM_SIZE)));
+        var context = vertx.getOrCreateContext();
+        context.runOnContext(v -> vertx.createNetClient().connect(emulator.actualPort(), "localhost", connected -> {
+            if (connected.failed()) {
+                done.completeExceptionally(connected.cause());
+                return;
+            }
+            var metrics = new SessionMetrics(new MetricsRegistry(), UUID.randomUUID());
+            var server = new AudioServer(vertx, connected.result(), 200, metrics);
+            server.onClient(client, AudioProtocol.IMA_ADPCM);
+        }));
+        vertx.exceptionHandler(done::completeExceptionally);
+
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(1, writes.size());
+        var expected = new ImaAdpcmEncoder(PCM_SIZE);
+        var expectedBatch = Buffer.buffer();
+        expected.encode(chunk(PCM_SIZE).slice(4, 4 + PCM_SIZE), expectedBatch);
+        expected.encode(chunk(PCM_SIZE).slice(4, 4 + PCM_SIZE), expectedBatch);
+        assertEquals(2 * ImaAdpcmEncoder.getMessageSize(PCM_SIZE), writes.get(0).length());
+        assertEquals(expectedBatch, writes.get(0));
+    }
+
+    /**
+     * @return a server that sends {@code chunks} in one go to whoever connects, like melonDS does on its audio socket
+     */
+    private NetServer startEmulator(List<Buffer> chunks) throws Exception {
+        var data = Buffer.buffer();
+        chunks.forEach(data::appendBuffer);
+        var listening = new CompletableFuture<NetServer>();
+        vertx.createNetServer()
+                .connectHandler(socket -> socket.write(data))
+                .listen(0, "localhost", ar -> {
+                    if (ar.succeeded()) {
+                        listening.complete(ar.result());
+                    } else {
+                        listening.completeExceptionally(ar.cause());
+                    }
+                });
+        return listening.get(10, TimeUnit.SECONDS);
+    }
+
+    private static Buffer chunk(int pcmSize) {
+        var chunk = Buffer.buffer(4 + pcmSize).appendIntLE(pcmSize);
+        for (int i = 0; i < pcmSize / 2; i++) {
+            chunk.appendShortLE((short) (1000 * Math.sin(i / 10.0)));
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,46 @@
+package com.cbruegg.emuserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RomStoreTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void completingAnUploadAgainGivesTheSameResult() throws Exception {
+        var store = new RomStore(folder.getRoot().toPath(), ".nds");
+        var rom = new byte[2500];
+        new Random(1).nextBytes(rom);
+        var md5 = String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(rom)));
+
+        var upload = store.createUpload(UUID.randomUUID(), md5, rom.length, CHUNK_SIZE);
+        for (int i = 0; i * CHUNK_SIZE < rom.length; i++) {
+            var end = Math.min(rom.length, (i + 1) * CHUNK_SIZE);
+            upload.writeChunk(i, Arrays.copyOfRange(rom, i * CHUNK_SIZE, end), null);
+        }
+
+        assertEquals(md5, store.completeUpload(upload));
+        assertEquals(md5, store.completeUpload(upload));
+        assertNull(store.getUpload(upload.getId()));
+        var stored = store.get(md5);
+        assertNotNull(stored);
+        assertArrayEquals(rom, Files.readAllBytes(stored.path()));
+    }
+}
@@ -0,0 +1,147 @@
+package com.cbruegg.emuserver.platform.ds;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ImaAdpcmEncoderTest {
+
+    private static final int HEADER_SIZE = 12;
+    private static final int SAMPLE_RATE = 32768;
+
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    @Test
+    public void roundTripsSineWithinNoiseFloor() {
+        var left = sine(440, 12000, 4096);
+        var right = sine(1000, 6000, 4096);
+        var encoder = new ImaAdpcmEncoder(0x2000);
+
+        var decodedLeft = new short[left.length];
+        var decodedRight = new short[right.length];
+        var chunkFrames = 512;
+        for (int start = 0; start < left.length; start += chunkFrames) {
+            var pcm = pcm(left, right, start, chunkFrames);
+            var message = encoder.encode(pcm, Buffer.buffer());
+            decode(message, 0, decodedLeft, decodedRight, start);
+        }
+
+        // The step size needs a few samples to adapt from its initial state
+        var settle = 64;
+        assertTrue(snr(left, decodedLeft, settle) > 20);
+        assertTrue(snr(right, decodedRight, settle) > 20);
+    }
+
+    @Test
+    public void eachMessageDecodesOnItsOwn() {
+        var left = sine(440, 12000, 1024);
+        var right = sine(220, 8000, 1024);
+        var encoder = new ImaAdpcmEncoder(0x2000);
+        encoder.encode(pcm(left, right, 0, 512), Buffer.buffer());
+        var second = encoder.encode(pcm(left, right, 512, 512), Buffer.buffer());
+
+        // Continuing from the first message gives the same samples as starting from the state in the second one
+        var continuedLeft = new short[1024];
+        var continuedRight = new short[1024];
+        var encoderAgain = new ImaAdpcmEncoder(0x2000);
+        decode(encoderAgain.encode(pcm(left, right, 0, 512), Buffer.buffer()), 0, continuedLeft, continuedRight, 0);
+        decode(encoderAgain.encode(pcm(left, right, 512, 512), Buffer.buffer()), 0, continuedLeft, continuedRight, 512);
+        var aloneLeft = new short[1024];
+        var aloneRight = new short[1024];
+        decode(second, 0, aloneLeft, aloneRight, 512);
+
+        for (int i = 512; i < 1024; i++) {
+            assertEquals(continuedLeft[i], aloneLeft[i]);
+            assertEquals(continuedRight[i], aloneRight[i]);
+        }
+    }
+
+    @Test
+    public void appendsToExistingContentAndDropsIncompleteSamples() {
+        var encoder = new ImaAdpcmEncoder(16);
+        var pcm = pcm(sine(440, 1000, 100), sine(440, 1000, 100), 0, 100).appendBytes(new byte[]{1, 2, 3});
+        var prefix = new byte[]{9, 8, 7};
+        var into = Buffer.buffer().appendBytes(prefix);
+
+        var result = encoder.encode(pcm, into);
+
+        assertSame(into, result);
+        assertEquals(prefix.length + HEADER_SIZE + 100, into.length());
+        assertArrayEquals(prefix, into.getBytes(0, prefix.length));
+        assertEquals(HEADER_SIZE - 4 + 100, into.getIntLE(prefix.length));
+        assertEquals(HEADER_SIZE + 100, ImaAdpcmEncoder.getMessageSize(pcm.length()));
+    }
+
+    /**
+     * The standard IMA-ADPCM decoder, starting from the state in the header of the message.
+     */
+    private static void decode(Buffer message, int offset, short[] left, short[] right, int start) {
+        var length = message.getIntLE(offset);
+        int[] predictors = {message.getShortLE(offset + 4), message.getShortLE(offset + 8)};
+        int[] stepIndices = {message.getUnsignedByte(offset + 6), message.getUnsignedByte(offset + 10)};
+        var samples = length - (HEADER_SIZE - 4);
+        for (int i = 0; i < samples; i++) {
+            var packed = message.getUnsignedByte(offset + HEADER_SIZE + i);
+            left[start + i] = (short) decodeNibble(packed & 0xF, predictors, stepIndices, 0);
+            right[start + i] = (short) decodeNibble(packed >> 4, predictors, stepIndices, 1);
+        }
+    }
+
+    private static int decodeNibble(int nibble, int[] predictors, int[] stepIndices, int channel) {
+        var step = STEP_TABLE[stepIndices[channel]];
+        var diff = step >> 3;
+        if ((nibble & 4) != 0) {
+            diff += step;
+        }
+        if ((nibble & 2) != 0) {
+            diff += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            diff += step >> 2;
+        }
+        var predictor = predictors[channel] + ((nibble & 8) != 0 ? -diff : diff);
+        predictors[channel] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+        stepIndices[channel] = Math.max(0, Math.min(STEP_TABLE.length - 1, stepIndices[channel] + INDEX_TABLE[nibble & 7]));
+        return predictors[channel];
+    }
+
+    private static short[] sine(double frequency, double amplitude, int frames) {
+        var samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static Buffer pcm(short[] left, short[] right, int start, int frames) {
+        var pcm = Buffer.buffer(frames * 4);
+        for (int i = start; i < start + frames; i++) {
+            pcm.appendShortLE(left[i]).appendShortLE(right[i]);
+        }
+        return pcm;
+    }
+
+    /**
+     * @return the signal-to-noise ratio in dB, from sample {@code from} on
+     */
+    private static double snr(short[] original, short[] decoded, int from) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = from; i < original.length; i++) {
+            signal += (double) original[i] * original[i];
+            noise += (double) (original[i] - decoded[i]) * (original[i] - decoded[i]);
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+}
@@ -0,0 +1,80 @@
+package com.cbruegg.emuserver.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryDeltaTest {
+
+    private static final int SIZE = 0x10000;
+
+    @Test
+    public void roundTripsIdenticalInputs() throws IOException {
+        var base = random(SIZE, 1);
+
+        var delta = BinaryDelta.encode(base, base.clone());
+
+        assertArrayEquals(base, BinaryDelta.apply(base, delta));
+        assertTrue(delta.length < 64);
+    }
+
+    @Test
+    public void roundTripsScatteredChanges() throws IOException {
+        var base = random(SIZE, 2);
+        var target = base.clone();
+        for (int i = 0; i < SIZE; i += 997) {
+            target[i]++;
+        }
+
+        assertArrayEquals(target, BinaryDelta.apply(base, BinaryDelta.encode(base, target)));
+    }
+
+    @Test
+    public void roundTripsShrinkingInput() throws IOException {
+        var base = random(SIZE, 3);
+        var target = Arrays.copyOf(base, SIZE / 2);
+        target[100] ^= 0x55;
+        target[target.length - 1] ^= 0x55;
+
+        assertArrayEquals(target, BinaryDelta.apply(base, BinaryDelta.encode(base, target)));
+    }
+
+    @Test
+    public void roundTripsGrowingInput() throws IOException {
+        var base = random(SIZE, 4);
+        var target = Arrays.copyOf(base, SIZE * 2);
+        System.arraycopy(random(SIZE, 5), 0, target, SIZE, SIZE);
+        target[0] ^= 0x55;
+
+        assertArrayEquals(target, BinaryDelta.apply(base, BinaryDelta.encode(base, target)));
+    }
+
+    @Test
+    public void roundTripsFromAndToEmptyInput() throws IOException {
+        var data = random(SIZE, 6);
+        var empty = new byte[0];
+
+        assertArrayEquals(data, BinaryDelta.apply(empty, BinaryDelta.encode(empty, data)));
+        assertArrayEquals(empty, BinaryDelta.apply(data, BinaryDelta.encode(data, empty)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedDelta() throws IOException {
+        var base = random(SIZE, 7);
+        var target = random(SIZE, 8);
+        var delta = BinaryDelta.encode(base, target);
+
+        BinaryDelta.apply(base, Arrays.copyOf(delta, delta.length / 2));
+    }
+
+    private static byte[] random(int size, long seed) {
+        var bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}